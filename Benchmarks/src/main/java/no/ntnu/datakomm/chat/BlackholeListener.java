@@ -0,0 +1,58 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.List;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * A listener that hands everything it receives to a JMH Blackhole, so that the JIT can't
+ * optimize the delivery away.
+ */
+class BlackholeListener implements ChatListener {
+    private final Blackhole blackhole;
+
+    BlackholeListener(Blackhole blackhole) {
+        this.blackhole = blackhole;
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+        blackhole.consume(success);
+        blackhole.consume(errMsg);
+    }
+
+    @Override
+    public void onDisconnect() {
+        blackhole.consume(this);
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        blackhole.consume(message);
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+        blackhole.consume(errMsg);
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+        blackhole.consume(usernames);
+    }
+
+    @Override
+    public void onUsersChanged(List<String> joined, List<String> left) {
+        blackhole.consume(joined);
+        blackhole.consume(left);
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+        blackhole.consume(commands);
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+        blackhole.consume(errMsg);
+    }
+}
@@ -0,0 +1,68 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing of one line received from the server, per command type: only decoding the command,
+ * and the whole path through TCPClient up to a listener.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class InboundParsingBenchmark {
+    private static final Map<String, String> LINES = Map.of(
+            "loginok", "loginok",
+            "loginerr", "loginerr incorrect username format",
+            "users", "users alice bob carol dave eve frank grace heidi ivan judy",
+            "msg", "msg alice Hello everyone, how is the assignment going?",
+            "privmsg", "privmsg bob Did you get the listener thread working?",
+            "msgerr", "msgerr incorrect recipient",
+            "cmderr", "cmderr command not supported",
+            "supported", "supported login msg privmsg users help joined left",
+            "joined", "joined alice");
+
+    @Param({"loginok", "loginerr", "users", "msg", "privmsg", "msgerr", "cmderr", "supported",
+            "joined"})
+    public String command;
+
+    private byte[] line;
+    private CommandDecoder decoder;
+    private TCPClient client;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        line = LINES.get(command).getBytes(StandardCharsets.UTF_8);
+        decoder = new CommandDecoder();
+        client = new TCPClient();
+        client.addListener(new BlackholeListener(blackhole));
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) {
+        blackhole.consume(decoder.decode(line, 0, line.length));
+        blackhole.consume(decoder.words());
+        blackhole.consume(decoder.text());
+    }
+
+    @Benchmark
+    public void handleServerResponse() {
+        client.handleServerResponse(line, 0, line.length);
+    }
+}
@@ -0,0 +1,47 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Delivery of one incoming chat message to 1, 10 and 100 listeners, called directly on the
+ * thread that reads from the server.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ListenerFanoutBenchmark {
+    @Param({"1", "10", "100"})
+    public int listenerCount;
+
+    private final byte[] line = "msg alice Hello everyone!".getBytes(StandardCharsets.UTF_8);
+    private TCPClient client;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        client = new TCPClient();
+        for (int i = 0; i < listenerCount; i++) {
+            client.addListener(new BlackholeListener(blackhole));
+        }
+    }
+
+    @Benchmark
+    public void deliverMessage() {
+        client.handleServerResponse(line, 0, line.length);
+    }
+}
@@ -0,0 +1,59 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Formatting of outgoing commands the way TCPClient.sendCommand() does it: one command per write,
+ * and a batch of commands written together.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class OutboundFormattingBenchmark {
+    private static final int BATCH_SIZE = 100;
+
+    @Param({"16", "256"})
+    public int messageLength;
+
+    private String message;
+    private OutboundBuffer buffer;
+    private final OutputStream out = OutputStream.nullOutputStream();
+
+    @Setup
+    public void setUp() {
+        message = "x".repeat(messageLength);
+        buffer = new OutboundBuffer();
+    }
+
+    @Benchmark
+    public void singleCommand() throws IOException {
+        buffer.appendLine("msg " + message.trim());
+        buffer.writeTo(out);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void batchedCommands() throws IOException {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            buffer.appendLine("msg " + message.trim());
+        }
+        buffer.writeTo(out);
+    }
+}
@@ -0,0 +1,65 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TextMessage.hashCode() and equals(), as used when messages are kept in hash-based collections,
+ * and the cost of decoding the text of a compact message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class TextMessageBenchmark {
+    private TextMessage message;
+    private TextMessage equalMessage;
+    private TextMessage otherMessage;
+    private TextMessage compactMessage;
+
+    @Setup
+    public void setUp() {
+        String text = "Did you get the listener thread working? Mine hangs after login.";
+        message = new TextMessage("alice", false, text);
+        // Equal content in other String instances, like two messages parsed from the network
+        equalMessage = new TextMessage(new String("alice"), false, new String(text));
+        otherMessage = new TextMessage("alice", false, text.replace('?', '!'));
+        compactMessage = TextMessage.compact("alice", false, text);
+    }
+
+    @Benchmark
+    public int hashCodeOf() {
+        return message.hashCode();
+    }
+
+    @Benchmark
+    public boolean equalsEqual() {
+        return message.equals(equalMessage);
+    }
+
+    @Benchmark
+    public boolean equalsDifferent() {
+        return message.equals(otherMessage);
+    }
+
+    @Benchmark
+    public boolean equalsCompact() {
+        return message.equals(compactMessage);
+    }
+
+    @Benchmark
+    public String compactGetText() {
+        return compactMessage.getText();
+    }
+}
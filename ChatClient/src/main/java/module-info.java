@@ -1,6 +1,7 @@
 module no.ntnu.datakomm.chat {
   requires javafx.controls;
   requires javafx.fxml;
+  requires java.management;
 
   opens no.ntnu.datakomm.chat to javafx.fxml;
   exports no.ntnu.datakomm.chat;
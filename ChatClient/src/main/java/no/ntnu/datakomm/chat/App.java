@@ -16,6 +16,8 @@ import javafx.stage.Stage;
  * Class representing the main Graphical User Interface (GUI). JavaFX interface.
  */
 public class App extends Application {
+    // Controller of the loaded layout, told about the shutdown
+    private GUIController controller;
 
     public static void main(String[] args) {
         launch(args);
@@ -36,7 +38,9 @@ public class App extends Application {
         boolean loaded = false;
         if (fxmlUrl != null && cssUrl != null && iconUrl != null) {
             try {
-                root = FXMLLoader.load(fxmlUrl);
+                FXMLLoader loader = new FXMLLoader(fxmlUrl);
+                root = loader.load();
+                controller = loader.getController();
                 Scene scene = new Scene(root, 600, 400);
                 scene.getStylesheets().add(cssUrl.toURI().toString());
                 primaryStage.setTitle("NTNU Ålesund - ChatClient");
@@ -63,4 +67,14 @@ public class App extends Application {
             Platform.exit();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * This method is called automatically by JavaFX when the application exits
+     */
+    @Override
+    public void stop() {
+        if (controller != null) {
+            controller.shutdown();
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Headless front-end: drives a TCPClient from commands read from stdin or a script file and
+ * writes the chat events to stdout. It needs no JavaFX, so it starts fast and runs on hosts
+ * without a display, for example for bots.
+ *
+ * Input, one command per line:
+ * <pre>
+ *   /login name           log in, wait for the answer
+ *   /users                request the user list, wait for the answer
+ *   /help                 request the supported commands, wait for the answer
+ *   /privmsg user text    send a private message
+ *   /msg text             send a public message
+ *   /wait millis          pause, for scripts
+ *   /quit                 disconnect and stop
+ *   text                  any other line not starting with "/" is a public message
+ * </pre>
+ * Empty lines and lines starting with "#" are ignored.
+ *
+ * Output, one event per line: the event type and its fields separated by tabs. Tabs, line
+ * breaks and backslashes inside fields are escaped as \t, \n, \r and \\.
+ * <pre>
+ *   loginok | loginerr reason | msg sender text | privmsg sender text | msgerr reason
+ *   cmderr reason | users name... | joined name... | left name... | supported command...
+ *   reconnecting attempt delay | reconnected | disconnected | error description
+ * </pre>
+ */
+public class ChatConsole implements ChatListener {
+    // How long /login, /users and /help wait for the answer of the server
+    private static final long REQUEST_TIMEOUT = 5000;
+
+    private final TCPClient client;
+    private final PrintWriter out;
+    // Opened when the connection is closed for good
+    private final CountDownLatch disconnected = new CountDownLatch(1);
+
+    /**
+     * @param client The client to drive, connected and listening. The console registers itself
+     *               as a listener
+     * @param out    Where the events are written
+     */
+    public ChatConsole(TCPClient client, PrintWriter out) {
+        this.client = client;
+        this.out = out;
+        client.addListener(this);
+    }
+
+    /**
+     * Usage: ChatConsole [--script file] [--daemon] host port [username]
+     *
+     * Commands are read from the script file if given, otherwise from stdin. When the input
+     * ends, the console disconnects, unless --daemon is given: then it keeps writing events
+     * until the server closes the connection. The chat.reconnect system property turns on
+     * automatic reconnecting, like in the GUI.
+     *
+     * Exit status: 0 when done, 1 when the connection or the login fails, 2 on wrong arguments.
+     *
+     * @param args Command line arguments
+     */
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    private static int run(String[] args) {
+        String script = null;
+        boolean daemon = false;
+        int i = 0;
+        while (i < args.length && args[i].startsWith("--")) {
+            if (args[i].equals("--script") && i + 1 < args.length) {
+                script = args[i + 1];
+                i += 2;
+            } else if (args[i].equals("--daemon")) {
+                daemon = true;
+                i++;
+            } else {
+                return usage();
+            }
+        }
+        if (args.length - i < 2 || args.length - i > 3) {
+            return usage();
+        }
+        String host = args[i];
+        int port;
+        try {
+            port = Integer.parseInt(args[i + 1]);
+        } catch (NumberFormatException e) {
+            return usage();
+        }
+        String username = args.length - i == 3 ? args[i + 2] : null;
+
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        TCPClient client = new TCPClient();
+        if (Boolean.getBoolean("chat.reconnect")) {
+            client.setReconnectPolicy(new ReconnectPolicy());
+            client.setReplayUnsent(true);
+        }
+        ChatConsole console = new ChatConsole(client, out);
+        if (!client.connect(host, port)) {
+            console.emit("error", "Could not connect to " + host + ":" + port);
+            return 1;
+        }
+        client.startListenThread();
+        if (username != null && !console.execute("/login " + username)) {
+            client.disconnect();
+            return 1;
+        }
+        try (BufferedReader in = script != null
+                ? Files.newBufferedReader(Paths.get(script), StandardCharsets.UTF_8)
+                : new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))) {
+            return console.run(in, daemon);
+        } catch (IOException e) {
+            console.emit("error", "Could not read the input: " + e.getMessage());
+            client.disconnect();
+            return 1;
+        }
+    }
+
+    private static int usage() {
+        System.err.println("Usage: ChatConsole [--script file] [--daemon] host port [username]");
+        return 2;
+    }
+
+    /**
+     * Execute the commands read from the input until it ends or a /quit command.
+     *
+     * @param in     Commands, one per line
+     * @param daemon When true, wait for the connection to be closed by the server after the
+     *               input ends instead of disconnecting
+     * @return Exit status: 0
+     * @throws IOException When reading the input fails
+     */
+    public int run(BufferedReader in, boolean daemon) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.trim().equals("/quit")) {
+                client.disconnect();
+                return 0;
+            }
+            execute(line);
+        }
+        if (daemon) {
+            try {
+                disconnected.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        client.disconnect();
+        return 0;
+    }
+
+    /**
+     * Execute one command.
+     *
+     * @param line The command
+     * @return false if the command failed
+     */
+    boolean execute(String line) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+            return true;
+        }
+        if (!trimmed.startsWith("/")) {
+            return sent(client.sendPublicMessage(line));
+        }
+        String[] parts = trimmed.split(" ", 3);
+        switch (parts[0]) {
+            case "/login":
+                if (parts.length < 2) {
+                    emit("error", "Usage: /login name");
+                    return false;
+                }
+                return await(client.loginAsync(parts[1]));
+            case "/users":
+                return await(client.usersAsync());
+            case "/help":
+                return await(client.supportedCommandsAsync());
+            case "/privmsg":
+                if (parts.length < 3) {
+                    emit("error", "Usage: /privmsg user text");
+                    return false;
+                }
+                return sent(client.sendPrivateMessage(parts[1], parts[2]));
+            case "/msg":
+                String text = trimmed.substring("/msg".length()).trim();
+                return !text.isEmpty() && sent(client.sendPublicMessage(text));
+            case "/wait":
+                try {
+                    Thread.sleep(Long.parseLong(parts.length > 1 ? parts[1] : "0"));
+                    return true;
+                } catch (NumberFormatException e) {
+                    emit("error", "Usage: /wait millis");
+                    return false;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            default:
+                emit("error", "Unknown command: " + parts[0]);
+                return false;
+        }
+    }
+
+    private boolean sent(boolean success) {
+        if (!success) {
+            emit("error", client.getLastError() != null ? client.getLastError()
+                    : "Could not send the message");
+        }
+        return success;
+    }
+
+    /**
+     * Wait for the answer to a request. The answer itself is written by the listener methods.
+     *
+     * @return true if the answer arrived in time, and for a login, if it succeeded
+     */
+    private boolean await(CompletableFuture<?> request) {
+        try {
+            Object result = request.get(REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+            return !(result instanceof LoginResult) || ((LoginResult) result).isSuccess();
+        } catch (ExecutionException e) {
+            emit("error", e.getCause().getMessage());
+        } catch (TimeoutException e) {
+            emit("error", "No answer from the server");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Write one event line
+     *
+     * @param type   Type of the event
+     * @param fields Fields of the event
+     */
+    synchronized void emit(String type, String... fields) {
+        StringBuilder line = new StringBuilder(type);
+        for (String field : fields) {
+            line.append('\t').append(escape(field));
+        }
+        out.println(line);
+        // Whoever reads the events wants them now
+        out.flush();
+    }
+
+    private void emitList(String type, String[] items) {
+        emit(type, String.join(" ", items));
+    }
+
+    /**
+     * @param field An event field
+     * @return The field with tabs, line breaks and backslashes escaped
+     */
+    static String escape(String field) {
+        if (field == null) {
+            return "";
+        }
+        StringBuilder escaped = null;
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            String replacement = c == '\t' ? "\\t" : c == '\n' ? "\\n" : c == '\r' ? "\\r"
+                    : c == '\\' ? "\\\\" : null;
+            if (replacement != null && escaped == null) {
+                escaped = new StringBuilder(field.length() + 8).append(field, 0, i);
+            }
+            if (escaped != null) {
+                if (replacement != null) {
+                    escaped.append(replacement);
+                } else {
+                    escaped.append(c);
+                }
+            }
+        }
+        return escaped != null ? escaped.toString() : field;
+    }
+
+    @Override
+    public void onDisconnect() {
+        emit("disconnected");
+        disconnected.countDown();
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+        if (success) {
+            emit("loginok");
+        } else {
+            emit("loginerr", errMsg);
+        }
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        emit(message.isPrivate() ? "privmsg" : "msg", message.getSender(), message.getText());
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+        emit("msgerr", errMsg);
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+        emitList("users", usernames);
+    }
+
+    @Override
+    public void onUsersChanged(List<String> joined, List<String> left) {
+        if (!joined.isEmpty()) {
+            emitList("joined", joined.toArray(new String[0]));
+        }
+        if (!left.isEmpty()) {
+            emitList("left", left.toArray(new String[0]));
+        }
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+        emitList("supported", commands);
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+        emit("cmderr", errMsg);
+    }
+
+    @Override
+    public void onReconnecting(int attempt, long delayMillis) {
+        emit("reconnecting", Integer.toString(attempt), Long.toString(delayMillis));
+    }
+
+    @Override
+    public void onReconnected() {
+        emit("reconnected");
+    }
+}
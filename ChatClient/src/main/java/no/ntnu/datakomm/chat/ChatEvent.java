@@ -0,0 +1,154 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.List;
+
+/**
+ * One event received from the chat server, stored so that it can be delivered to the listeners
+ * later, on another thread.
+ */
+class ChatEvent {
+
+    /**
+     * Event types, one for every method in ChatListener
+     */
+    enum Type {
+        LOGIN_RESULT,
+        DISCONNECT,
+        USER_LIST,
+        USERS_CHANGED,
+        MESSAGE,
+        MESSAGE_ERROR,
+        COMMAND_ERROR,
+        SUPPORTED,
+        RECONNECTING,
+        RECONNECTED
+    }
+
+    private final Type type;
+    private final boolean success;
+    private final String errMsg;
+    private final String[] words;
+    private final TextMessage message;
+    private final List<String> joined;
+    private final List<String> left;
+    // Reconnect attempt and the delay before it
+    private final int attempt;
+    private final long delayMillis;
+
+    private ChatEvent(Type type, boolean success, String errMsg, String[] words, TextMessage message) {
+        this(type, success, errMsg, words, message, null, null);
+    }
+
+    private ChatEvent(Type type, boolean success, String errMsg, String[] words, TextMessage message,
+                      List<String> joined, List<String> left) {
+        this(type, success, errMsg, words, message, joined, left, 0, 0);
+    }
+
+    private ChatEvent(Type type, boolean success, String errMsg, String[] words, TextMessage message,
+                      List<String> joined, List<String> left, int attempt, long delayMillis) {
+        this.type = type;
+        this.success = success;
+        this.errMsg = errMsg;
+        this.words = words;
+        this.message = message;
+        this.joined = joined;
+        this.left = left;
+        this.attempt = attempt;
+        this.delayMillis = delayMillis;
+    }
+
+    static ChatEvent loginResult(boolean success, String errMsg) {
+        return new ChatEvent(Type.LOGIN_RESULT, success, errMsg, null, null);
+    }
+
+    static ChatEvent disconnect() {
+        return new ChatEvent(Type.DISCONNECT, false, null, null, null);
+    }
+
+    static ChatEvent userList(String[] usernames) {
+        return new ChatEvent(Type.USER_LIST, false, null, usernames, null);
+    }
+
+    static ChatEvent usersChanged(List<String> joined, List<String> left) {
+        return new ChatEvent(Type.USERS_CHANGED, false, null, null, null, joined, left);
+    }
+
+    static ChatEvent message(TextMessage message) {
+        return new ChatEvent(Type.MESSAGE, false, null, null, message);
+    }
+
+    static ChatEvent messageError(String errMsg) {
+        return new ChatEvent(Type.MESSAGE_ERROR, false, errMsg, null, null);
+    }
+
+    static ChatEvent commandError(String errMsg) {
+        return new ChatEvent(Type.COMMAND_ERROR, false, errMsg, null, null);
+    }
+
+    static ChatEvent supported(String[] commands) {
+        return new ChatEvent(Type.SUPPORTED, false, null, commands, null);
+    }
+
+    static ChatEvent reconnecting(int attempt, long delayMillis) {
+        return new ChatEvent(Type.RECONNECTING, false, null, null, null, null, null,
+                attempt, delayMillis);
+    }
+
+    static ChatEvent reconnected() {
+        return new ChatEvent(Type.RECONNECTED, true, null, null, null);
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    /**
+     * @return true if a newer event of the same type makes this one obsolete (the newest user
+     * list or supported command list is all that matters)
+     */
+    boolean isCoalescable() {
+        return type == Type.USER_LIST || type == Type.SUPPORTED;
+    }
+
+    /**
+     * Call the listener method corresponding to this event
+     *
+     * @param listener The listener to notify
+     */
+    void deliverTo(ChatListener listener) {
+        switch (type) {
+            case LOGIN_RESULT:
+                listener.onLoginResult(success, errMsg);
+                break;
+            case DISCONNECT:
+                listener.onDisconnect();
+                break;
+            case USER_LIST:
+                listener.onUserList(words);
+                break;
+            case USERS_CHANGED:
+                listener.onUsersChanged(joined, left);
+                break;
+            case MESSAGE:
+                listener.onMessageReceived(message);
+                break;
+            case MESSAGE_ERROR:
+                listener.onMessageError(errMsg);
+                break;
+            case COMMAND_ERROR:
+                listener.onCommandError(errMsg);
+                break;
+            case SUPPORTED:
+                listener.onSupportedCommands(words);
+                break;
+            case RECONNECTING:
+                listener.onReconnecting(attempt, delayMillis);
+                break;
+            case RECONNECTED:
+                listener.onReconnected();
+                break;
+            default:
+                break;
+        }
+    }
+}
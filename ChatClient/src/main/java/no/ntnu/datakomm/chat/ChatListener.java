@@ -1,5 +1,7 @@
 package no.ntnu.datakomm.chat;
 
+import java.util.List;
+
 /**
  * Interface for a listener that can handle events received from the server
  */
@@ -45,6 +47,17 @@ public interface ChatListener {
      */
     public void onUserList(String[] usernames);
 
+    /**
+     * This method is called when users have logged in or out since the previous user list (or
+     * join/leave notification). Listeners that show the user list can patch it instead of
+     * rebuilding it on every onUserList() call.
+     *
+     * @param joined Users that have logged in
+     * @param left   Users that have logged out
+     */
+    public default void onUsersChanged(List<String> joined, List<String> left) {
+    }
+
     /**
      * This method is called when a list of currently supported commands is
      * received
@@ -60,4 +73,21 @@ public interface ChatListener {
      */
     public void onCommandError(String errMsg);
 
+    /**
+     * This method is called when the connection was lost and the client waits before trying
+     * to connect again. Only called when reconnecting is turned on in the client.
+     *
+     * @param attempt     Number of the coming attempt, starting at 1
+     * @param delayMillis Time until the attempt is made
+     */
+    public default void onReconnecting(int attempt, long delayMillis) {
+    }
+
+    /**
+     * This method is called when the client has connected again after losing the connection,
+     * and has logged in again if it was logged in before.
+     */
+    public default void onReconnected() {
+    }
+
 }
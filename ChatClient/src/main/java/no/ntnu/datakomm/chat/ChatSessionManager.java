@@ -0,0 +1,291 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs many chat sessions - one logged-in user on one server each - in one JVM. Every session
+ * is a TCPClient, but they all share one NioEventLoop for their sockets and one
+ * EventDispatcher for their listener calls, so a thousand sessions cost a thousand channels
+ * and not a thousand listen threads. Listeners are still registered per session: an event of
+ * one session is only delivered to the listeners of that session.
+ *
+ * Sessions are identified by a name chosen by the caller, for example "alice@chat.example".
+ *
+ * The dispatcher is fed by the selector threads. With the BLOCK policy, one slow listener
+ * filling its buffer would stall reading for every session, so a manager creating its own
+ * dispatcher uses DROP_OLDEST by default: when the listeners fall behind, the oldest events
+ * are dropped (see EventDispatcher.getDroppedCount()) and reading goes on.
+ *
+ * Thread-safe.
+ */
+public class ChatSessionManager implements Closeable {
+    private static final int DEFAULT_DISPATCHER_CAPACITY = 1024;
+
+    private final NioEventLoop eventLoop;
+    private final EventDispatcher dispatcher;
+    // True when the event loop and dispatcher were created here and are closed by close()
+    private final boolean ownsResources;
+
+    private final Map<String, TCPClient> sessions = new ConcurrentHashMap<>();
+    // Applied to new sessions, null means sessions don't reconnect
+    private volatile ReconnectPolicy reconnectPolicy = null;
+    // Guarded by this, so that no session is created while close() runs
+    private boolean closed = false;
+
+    /**
+     * Create a manager with its own event loop (one selector thread per core) and dispatcher.
+     *
+     * @throws IOException When the selectors can't be opened
+     */
+    public ChatSessionManager() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a manager with its own event loop and a dispatcher holding up to 1024 events,
+     * dropping the oldest when full.
+     *
+     * @param ioThreads Number of selector threads
+     * @throws IOException When the selectors can't be opened
+     */
+    public ChatSessionManager(int ioThreads) throws IOException {
+        this(ioThreads, DEFAULT_DISPATCHER_CAPACITY, EventDispatcher.OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * Create a manager with its own event loop and dispatcher.
+     *
+     * @param ioThreads          Number of selector threads
+     * @param dispatcherCapacity Maximum number of events waiting for the listeners
+     * @param overflowPolicy     What to do when the listeners fall behind. BLOCK stalls reading
+     *                           for all the sessions of a selector thread while the buffer is full
+     * @throws IOException When the selectors can't be opened
+     */
+    public ChatSessionManager(int ioThreads, int dispatcherCapacity,
+                              EventDispatcher.OverflowPolicy overflowPolicy) throws IOException {
+        this(new NioEventLoop(ioThreads), new EventDispatcher(dispatcherCapacity, overflowPolicy),
+                true);
+    }
+
+    /**
+     * Create a manager using an existing event loop and dispatcher, which can be shared with
+     * other clients. They are not closed by close().
+     *
+     * @param eventLoop  Drives the connections of the sessions
+     * @param dispatcher Calls the listeners of the sessions
+     */
+    public ChatSessionManager(NioEventLoop eventLoop, EventDispatcher dispatcher) {
+        this(eventLoop, dispatcher, false);
+    }
+
+    private ChatSessionManager(NioEventLoop eventLoop, EventDispatcher dispatcher,
+                               boolean ownsResources) {
+        if (eventLoop == null || dispatcher == null) {
+            throw new IllegalArgumentException("eventLoop and dispatcher are required");
+        }
+        this.eventLoop = eventLoop;
+        this.dispatcher = dispatcher;
+        this.ownsResources = ownsResources;
+    }
+
+    /**
+     * Set how sessions created afterwards reconnect when their connection is lost.
+     *
+     * @param policy The reconnect policy, or null to not reconnect
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        this.reconnectPolicy = policy;
+    }
+
+    /**
+     * Create a session that is not connected yet. Its client uses the shared event loop and
+     * dispatcher; connect it and log in through the returned client.
+     *
+     * @param name Name of the session
+     * @return The client of the session
+     * @throws IllegalArgumentException When a session with this name exists
+     * @throws IllegalStateException    When the manager is closed
+     */
+    public TCPClient createSession(String name) {
+        TCPClient client = new TCPClient(eventLoop);
+        client.setEventDispatcher(dispatcher);
+        client.setReconnectPolicy(reconnectPolicy);
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("The session manager is closed");
+            }
+            if (sessions.putIfAbsent(name, client) != null) {
+                throw new IllegalArgumentException("Session already exists: " + name);
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Create a session, connect it and log in.
+     *
+     * @param name     Name of the session
+     * @param host     Host name or IP address of the chat server
+     * @param port     TCP port of the chat server
+     * @param username Username to log in with
+     * @param listener Listener of the session, registered before connecting so that it sees
+     *                 every event. May be null
+     * @return Completed with the login result. Fails when the connection can't be opened; the
+     * session is then removed again. Also fails when the session is closed while connecting
+     */
+    public CompletableFuture<LoginResult> openSession(String name, String host, int port,
+                                                      String username, ChatListener listener) {
+        TCPClient client = createSession(name);
+        if (listener != null) {
+            client.addListener(listener);
+        }
+        if (!client.connect(host, port)) {
+            sessions.remove(name, client);
+            return CompletableFuture.failedFuture(new IOException(
+                    "Could not connect session " + name + " to " + host + ":" + port));
+        }
+        if (sessions.get(name) != client) {
+            // Closed while connecting, by closeSession() or close()
+            client.disconnect();
+            return CompletableFuture.failedFuture(new IOException(
+                    "Session " + name + " was closed while connecting"));
+        }
+        return client.loginAsync(username);
+    }
+
+    /**
+     * @param name Name of a session
+     * @return The client of the session, null if there is no such session
+     */
+    public TCPClient getSession(String name) {
+        return sessions.get(name);
+    }
+
+    /**
+     * @return Names of the current sessions
+     */
+    public Set<String> getSessionNames() {
+        return Collections.unmodifiableSet(sessions.keySet());
+    }
+
+    /**
+     * @return Number of sessions
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Register a listener for the events of one session
+     *
+     * @param name     Name of the session
+     * @param listener The listener
+     * @return false if there is no such session
+     */
+    public boolean addListener(String name, ChatListener listener) {
+        TCPClient client = sessions.get(name);
+        if (client == null) {
+            return false;
+        }
+        client.addListener(listener);
+        return true;
+    }
+
+    /**
+     * Unregister a listener of one session
+     *
+     * @param name     Name of the session
+     * @param listener The listener
+     */
+    public void removeListener(String name, ChatListener listener) {
+        TCPClient client = sessions.get(name);
+        if (client != null) {
+            client.removeListener(listener);
+        }
+    }
+
+    /**
+     * Send a public message from every session.
+     *
+     * @param message The message to send
+     * @return Names of the sessions the message could not be sent from
+     */
+    public List<String> broadcast(String message) {
+        List<String> failed = new ArrayList<>();
+        for (Map.Entry<String, TCPClient> session : sessions.entrySet()) {
+            if (!session.getValue().sendPublicMessage(message)) {
+                failed.add(session.getKey());
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Disconnect one session and remove it.
+     *
+     * @param name Name of the session
+     * @return false if there is no such session
+     */
+    public boolean closeSession(String name) {
+        TCPClient client = sessions.remove(name);
+        if (client == null) {
+            return false;
+        }
+        client.disconnect();
+        return true;
+    }
+
+    /**
+     * Disconnect every session and remove them all.
+     */
+    public void disconnectAll() {
+        for (String name : sessions.keySet()) {
+            closeSession(name);
+        }
+    }
+
+    /**
+     * @param name Name of a session
+     * @return Current metrics of the session, null if there is no such session
+     */
+    public ClientMetrics.Snapshot getStats(String name) {
+        TCPClient client = sessions.get(name);
+        return client != null ? client.getMetrics().snapshot() : null;
+    }
+
+    /**
+     * @return Current metrics of every session, by session name
+     */
+    public Map<String, ClientMetrics.Snapshot> getStats() {
+        Map<String, ClientMetrics.Snapshot> stats = new LinkedHashMap<>();
+        for (Map.Entry<String, TCPClient> session : sessions.entrySet()) {
+            stats.put(session.getKey(), session.getValue().getMetrics().snapshot());
+        }
+        return stats;
+    }
+
+    /**
+     * Disconnect every session. The event loop and dispatcher are closed too, unless they were
+     * given to the constructor.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        disconnectAll();
+        if (ownsResources) {
+            dispatcher.close();
+            eventLoop.close();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package no.ntnu.datakomm.chat;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates the thread factories used for the background work of the chat client (listen threads,
+ * connection setup, user polling). On JDK 21 and newer the default factory creates virtual
+ * threads, so a thread blocked on a socket read costs a few kilobytes instead of a full platform
+ * thread stack. On older JDKs ordinary platform threads are created.
+ */
+public final class ChatThreads {
+
+    private ChatThreads() {
+    }
+
+    /**
+     * Create the default factory: virtual threads when the JDK supports them, platform threads
+     * otherwise.
+     *
+     * @param namePrefix Prefix of the thread names, a sequence number is appended
+     * @return The thread factory
+     */
+    public static ThreadFactory defaultFactory(String namePrefix) {
+        ThreadFactory virtual = virtualFactory(namePrefix);
+        return virtual != null ? virtual : platformFactory(namePrefix, false);
+    }
+
+    /**
+     * Create a factory for platform threads.
+     *
+     * @param namePrefix Prefix of the thread names, a sequence number is appended
+     * @param daemon     When true, the threads don't keep the JVM alive
+     * @return The thread factory
+     */
+    public static ThreadFactory platformFactory(String namePrefix, boolean daemon) {
+        AtomicLong counter = new AtomicLong();
+        return runnable -> {
+            Thread t = new Thread(runnable, namePrefix + "-" + counter.getAndIncrement());
+            t.setDaemon(daemon);
+            return t;
+        };
+    }
+
+    /**
+     * @return true if the running JDK supports virtual threads
+     */
+    public static boolean virtualThreadsSupported() {
+        return virtualFactory("probe") != null;
+    }
+
+    /**
+     * Create a factory for virtual threads, Thread.ofVirtual().name(prefix, 0).factory(). The
+     * code is compiled for an older JDK, so the API is looked up by reflection.
+     *
+     * @return The factory, or null when virtual threads are not available
+     */
+    private static ThreadFactory virtualFactory(String namePrefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method name = builderClass.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, namePrefix + "-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package no.ntnu.datakomm.chat;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and timers of one TCPClient. The hot paths (every received line, every sent command,
+ * every listener call) only add to LongAdders, which don't contend between threads. The values
+ * can be pulled as a consistent-enough Snapshot, or watched through JMX after registerMBean().
+ * Times are measured with System.nanoTime() and reported in nanoseconds.
+ */
+public class ClientMetrics implements ClientMetricsMXBean {
+
+    /**
+     * Count, total and maximum of a measured time
+     */
+    private static class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+        void record(long nanos) {
+            count.increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        long mean() {
+            long n = count.sum();
+            return n == 0 ? 0 : total.sum() / n;
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        void reset() {
+            count.reset();
+            total.reset();
+            max.reset();
+        }
+    }
+
+    // Command words of the commands the client sends; anything else is counted as "other"
+    private static final String[] OUTBOUND_COMMANDS = {"msg", "privmsg", "login", "users", "help"};
+    private static final String OTHER_COMMAND = "other";
+    private static final CommandDecoder.Command[] INBOUND_COMMANDS = CommandDecoder.Command.values();
+
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder linesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder linesOut = new LongAdder();
+    private final LongAdder[] inboundCommands = newAdders(INBOUND_COMMANDS.length);
+    private final LongAdder[] outboundCommands = newAdders(OUTBOUND_COMMANDS.length + 1);
+    private final Timer parseTime = new Timer();
+    private final Timer sendLatency = new Timer();
+    private final Map<ChatListener, Timer> listenerTimes = new ConcurrentHashMap<>();
+    // Connections opened again by the reconnect supervisor
+    private final LongAdder reconnects = new LongAdder();
+    private volatile ConnectionState state = ConnectionState.DISCONNECTED;
+
+    private final IntSupplier outboundQueuedBytes;
+    private final IntSupplier pendingRequests;
+    private final IntSupplier dispatcherQueued;
+
+    private ObjectName registeredName;
+
+    /**
+     * @param outboundQueuedBytes Reads the number of bytes waiting in the batch buffer
+     * @param pendingRequests     Reads the number of requests waiting for a response
+     * @param dispatcherQueued    Reads the number of events waiting in the event dispatcher
+     */
+    ClientMetrics(IntSupplier outboundQueuedBytes, IntSupplier pendingRequests,
+                  IntSupplier dispatcherQueued) {
+        this.outboundQueuedBytes = outboundQueuedBytes;
+        this.pendingRequests = pendingRequests;
+        this.dispatcherQueued = dispatcherQueued;
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Recording, called by TCPClient and EventDispatcher
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Record one received line.
+     *
+     * @param command   The command of the line
+     * @param length    Length of the line in bytes, without the line end
+     * @param parseTime Time spent recognizing the command
+     */
+    void lineReceived(CommandDecoder.Command command, int length, long parseTime) {
+        linesIn.increment();
+        bytesIn.add(length + 1);
+        inboundCommands[command.ordinal()].increment();
+        this.parseTime.record(parseTime);
+    }
+
+    /**
+     * Record one command put in the outbound buffer.
+     *
+     * @param cmd The command line, without the line end
+     */
+    void commandQueued(String cmd) {
+        for (int i = 0; i < OUTBOUND_COMMANDS.length; i++) {
+            String word = OUTBOUND_COMMANDS[i];
+            if (cmd.startsWith(word) && (cmd.length() == word.length() || cmd.charAt(word.length()) == ' ')) {
+                outboundCommands[i].increment();
+                return;
+            }
+        }
+        outboundCommands[OUTBOUND_COMMANDS.length].increment();
+    }
+
+    /**
+     * Record one write of the outbound buffer to the connection.
+     *
+     * @param bytes Number of bytes written
+     * @param lines Number of lines (commands) written
+     * @param nanos Time the write took
+     */
+    void written(int bytes, int lines, long nanos) {
+        bytesOut.add(bytes);
+        linesOut.add(lines);
+        sendLatency.record(nanos);
+    }
+
+    /**
+     * Record the time one listener spent handling one event.
+     */
+    void listenerCalled(ChatListener listener, long nanos) {
+        Timer timer = listenerTimes.get(listener);
+        if (timer == null) {
+            timer = listenerTimes.computeIfAbsent(listener, l -> new Timer());
+        }
+        timer.record(nanos);
+    }
+
+    /**
+     * Stop keeping the times of a listener that was removed.
+     */
+    void forgetListener(ChatListener listener) {
+        listenerTimes.remove(listener);
+    }
+
+    /**
+     * Record a successfully opened connection.
+     *
+     * @param reconnect true if the reconnect supervisor opened it after the connection was
+     *                  lost, false for connect()
+     */
+    void connected(boolean reconnect) {
+        if (reconnect) {
+            reconnects.increment();
+        }
+        state = ConnectionState.CONNECTED;
+    }
+
+    void disconnected() {
+        state = ConnectionState.DISCONNECTED;
+    }
+
+    void reconnecting() {
+        state = ConnectionState.RECONNECTING;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////
+    // Reading
+    ///////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return The current values of all the metrics
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Make the metrics visible through JMX, as
+     * no.ntnu.datakomm.chat:type=TCPClient,name=&lt;name&gt;. Replaces an earlier registration
+     * of these metrics.
+     *
+     * @param name Name of the client, must be unique in this JVM
+     * @return The name the MBean was registered with
+     * @throws JMException When the name is invalid or already in use
+     */
+    public synchronized ObjectName registerMBean(String name) throws JMException {
+        unregisterMBean();
+        ObjectName objectName = new ObjectName("no.ntnu.datakomm.chat:type=TCPClient,name="
+                + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        registeredName = objectName;
+        return objectName;
+    }
+
+    /**
+     * Remove the metrics from JMX, if they are registered.
+     */
+    public synchronized void unregisterMBean() {
+        if (registeredName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(registeredName);
+        } catch (JMException e) {
+            // Already gone
+        }
+        registeredName = null;
+    }
+
+    @Override
+    public String getConnectionState() {
+        return state.name();
+    }
+
+    /**
+     * @return The state of the connection
+     */
+    public ConnectionState getState() {
+        return state;
+    }
+
+    @Override
+    public long getReconnectCount() {
+        return reconnects.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getLinesIn() {
+        return linesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getLinesOut() {
+        return linesOut.sum();
+    }
+
+    @Override
+    public Map<String, Long> getInboundCommandCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (CommandDecoder.Command command : INBOUND_COMMANDS) {
+            counts.put(command.name().toLowerCase(), inboundCommands[command.ordinal()].sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getOutboundCommandCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int i = 0; i < OUTBOUND_COMMANDS.length; i++) {
+            counts.put(OUTBOUND_COMMANDS[i], outboundCommands[i].sum());
+        }
+        counts.put(OTHER_COMMAND, outboundCommands[OUTBOUND_COMMANDS.length].sum());
+        return counts;
+    }
+
+    @Override
+    public long getParseTimeMean() {
+        return parseTime.mean();
+    }
+
+    @Override
+    public long getParseTimeMax() {
+        return parseTime.max();
+    }
+
+    @Override
+    public long getSendLatencyMean() {
+        return sendLatency.mean();
+    }
+
+    @Override
+    public long getSendLatencyMax() {
+        return sendLatency.max();
+    }
+
+    @Override
+    public Map<String, Long> getListenerDispatchTimeMean() {
+        Map<String, Long> times = new LinkedHashMap<>();
+        for (Map.Entry<ChatListener, Timer> entry : listenerTimes.entrySet()) {
+            ChatListener listener = entry.getKey();
+            times.put(listener.getClass().getName() + "@"
+                    + Integer.toHexString(System.identityHashCode(listener)), entry.getValue().mean());
+        }
+        return times;
+    }
+
+    @Override
+    public int getOutboundQueuedBytes() {
+        return outboundQueuedBytes.getAsInt();
+    }
+
+    @Override
+    public int getPendingRequests() {
+        return pendingRequests.getAsInt();
+    }
+
+    @Override
+    public int getDispatcherQueued() {
+        return dispatcherQueued.getAsInt();
+    }
+
+    @Override
+    public void reset() {
+        bytesIn.reset();
+        linesIn.reset();
+        bytesOut.reset();
+        linesOut.reset();
+        for (LongAdder adder : inboundCommands) {
+            adder.reset();
+        }
+        for (LongAdder adder : outboundCommands) {
+            adder.reset();
+        }
+        parseTime.reset();
+        sendLatency.reset();
+        for (Timer timer : listenerTimes.values()) {
+            timer.reset();
+        }
+    }
+
+    /**
+     * The values of all the metrics at one moment. The counters are read one after the other
+     * while the client keeps running, so counters updated at the same time may be off by a few.
+     */
+    public static final class Snapshot {
+        private final ConnectionState connectionState;
+        private final long reconnectCount;
+        private final long bytesIn;
+        private final long linesIn;
+        private final long bytesOut;
+        private final long linesOut;
+        private final Map<String, Long> inboundCommandCounts;
+        private final Map<String, Long> outboundCommandCounts;
+        private final long parseTimeMean;
+        private final long parseTimeMax;
+        private final long sendLatencyMean;
+        private final long sendLatencyMax;
+        private final Map<String, Long> listenerDispatchTimeMean;
+        private final int outboundQueuedBytes;
+        private final int pendingRequests;
+        private final int dispatcherQueued;
+
+        private Snapshot(ClientMetrics m) {
+            connectionState = m.getState();
+            reconnectCount = m.getReconnectCount();
+            bytesIn = m.getBytesIn();
+            linesIn = m.getLinesIn();
+            bytesOut = m.getBytesOut();
+            linesOut = m.getLinesOut();
+            inboundCommandCounts = Collections.unmodifiableMap(m.getInboundCommandCounts());
+            outboundCommandCounts = Collections.unmodifiableMap(m.getOutboundCommandCounts());
+            parseTimeMean = m.getParseTimeMean();
+            parseTimeMax = m.getParseTimeMax();
+            sendLatencyMean = m.getSendLatencyMean();
+            sendLatencyMax = m.getSendLatencyMax();
+            listenerDispatchTimeMean = Collections.unmodifiableMap(m.getListenerDispatchTimeMean());
+            outboundQueuedBytes = m.getOutboundQueuedBytes();
+            pendingRequests = m.getPendingRequests();
+            dispatcherQueued = m.getDispatcherQueued();
+        }
+
+        public ConnectionState getConnectionState() {
+            return connectionState;
+        }
+
+        public long getReconnectCount() {
+            return reconnectCount;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public long getLinesIn() {
+            return linesIn;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public long getLinesOut() {
+            return linesOut;
+        }
+
+        /**
+         * @return Number of lines received per command word ("unknown" for unrecognized lines)
+         */
+        public Map<String, Long> getInboundCommandCounts() {
+            return inboundCommandCounts;
+        }
+
+        /**
+         * @param command The command word, for example "msg"
+         * @return Number of lines received with this command
+         */
+        public long getInboundCount(String command) {
+            return inboundCommandCounts.getOrDefault(command, 0L);
+        }
+
+        /**
+         * @return Number of commands sent per command word
+         */
+        public Map<String, Long> getOutboundCommandCounts() {
+            return outboundCommandCounts;
+        }
+
+        /**
+         * @param command The command word, for example "msg"
+         * @return Number of commands of this kind sent
+         */
+        public long getOutboundCount(String command) {
+            return outboundCommandCounts.getOrDefault(command, 0L);
+        }
+
+        public long getParseTimeMean() {
+            return parseTimeMean;
+        }
+
+        public long getParseTimeMax() {
+            return parseTimeMax;
+        }
+
+        public long getSendLatencyMean() {
+            return sendLatencyMean;
+        }
+
+        public long getSendLatencyMax() {
+            return sendLatencyMax;
+        }
+
+        /**
+         * @return Average time spent in each listener per event, by listener
+         */
+        public Map<String, Long> getListenerDispatchTimeMean() {
+            return listenerDispatchTimeMean;
+        }
+
+        public int getOutboundQueuedBytes() {
+            return outboundQueuedBytes;
+        }
+
+        public int getPendingRequests() {
+            return pendingRequests;
+        }
+
+        public int getDispatcherQueued() {
+            return dispatcherQueued;
+        }
+
+        @Override
+        public String toString() {
+            return "state=" + connectionState + ", reconnects=" + reconnectCount
+                    + ", in=" + linesIn + " lines/" + bytesIn + " bytes"
+                    + ", out=" + linesOut + " lines/" + bytesOut + " bytes"
+                    + ", inbound=" + inboundCommandCounts + ", outbound=" + outboundCommandCounts
+                    + ", parse=" + parseTimeMean + "/" + parseTimeMax + " ns"
+                    + ", send=" + sendLatencyMean + "/" + sendLatencyMax + " ns"
+                    + ", queued=" + outboundQueuedBytes + " bytes, pending=" + pendingRequests
+                    + ", dispatcher=" + dispatcherQueued;
+        }
+    }
+}
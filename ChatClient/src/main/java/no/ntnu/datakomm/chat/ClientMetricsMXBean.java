@@ -0,0 +1,55 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Map;
+
+/**
+ * The metrics of one TCPClient as seen through JMX. Times are in nanoseconds.
+ */
+public interface ClientMetricsMXBean {
+
+    String getConnectionState();
+
+    long getReconnectCount();
+
+    long getBytesIn();
+
+    long getLinesIn();
+
+    long getBytesOut();
+
+    long getLinesOut();
+
+    /**
+     * @return Number of lines received, per command word
+     */
+    Map<String, Long> getInboundCommandCounts();
+
+    /**
+     * @return Number of commands sent, per command word
+     */
+    Map<String, Long> getOutboundCommandCounts();
+
+    long getParseTimeMean();
+
+    long getParseTimeMax();
+
+    long getSendLatencyMean();
+
+    long getSendLatencyMax();
+
+    /**
+     * @return Average time spent in each listener per event, by listener
+     */
+    Map<String, Long> getListenerDispatchTimeMean();
+
+    int getOutboundQueuedBytes();
+
+    int getPendingRequests();
+
+    int getDispatcherQueued();
+
+    /**
+     * Set all counters and times to zero. Gauges and the connection state are not affected.
+     */
+    void reset();
+}
@@ -0,0 +1,194 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Decodes one line of the chat protocol directly from a byte buffer. The command word is
+ * recognised by comparing bytes, no substring is created for it. The fields of the command
+ * (argument, sender, text, word list) are only turned into Strings when asked for, so a
+ * listener-less client or a command without arguments (loginok) does not allocate at all.
+ *
+ * A decoder keeps a reference to the last decoded line and is meant to be reused by one
+ * reading thread; it is not thread-safe. The field accessors are only valid until the
+ * buffer is overwritten with the next line.
+ */
+class CommandDecoder {
+
+    /**
+     * Commands the server can send to the client
+     */
+    enum Command {
+        LOGINOK("loginok"),
+        LOGINERR("loginerr"),
+        USERS("users"),
+        MSG("msg"),
+        PRIVMSG("privmsg"),
+        MSGERR("msgerr"),
+        CMDERR("cmderr"),
+        SUPPORTED("supported"),
+        JOINED("joined"),
+        LEFT("left"),
+        UNKNOWN("");
+
+        private final byte[] keyword;
+
+        Command(String keyword) {
+            this.keyword = keyword.getBytes(StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * @return true if the given byte range holds exactly this command word
+         */
+        private boolean matches(byte[] buf, int start, int end) {
+            if (end - start != keyword.length) {
+                return false;
+            }
+            for (int i = 0; i < keyword.length; i++) {
+                if (buf[start + i] != keyword[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final Command[] KNOWN_COMMANDS = {
+            Command.MSG, Command.PRIVMSG, Command.USERS, Command.LOGINOK, Command.LOGINERR,
+            Command.MSGERR, Command.CMDERR, Command.SUPPORTED, Command.JOINED, Command.LEFT
+    };
+
+    private static final String[] NO_WORDS = new String[0];
+
+    // Turns the fields into Strings, mostly through its ASCII fast path
+    private final LineCodec codec = new LineCodec();
+
+    private byte[] buf;
+    private int argStart;
+    private int argEnd;
+
+    /**
+     * Decode one line. Leading and trailing whitespace is ignored.
+     *
+     * @param buf    Buffer holding the line
+     * @param offset Index of the first byte of the line
+     * @param length Length of the line, without the line terminator
+     * @return The recognised command, UNKNOWN if the command word is not known
+     */
+    Command decode(byte[] buf, int offset, int length) {
+        int start = skipSpace(buf, offset, offset + length);
+        int end = trimEnd(buf, start, offset + length);
+        int wordEnd = start;
+        while (wordEnd < end && buf[wordEnd] != ' ') {
+            wordEnd++;
+        }
+        this.buf = buf;
+        this.argStart = skipSpace(buf, wordEnd, end);
+        this.argEnd = end;
+
+        for (Command command : KNOWN_COMMANDS) {
+            if (command.matches(buf, start, wordEnd)) {
+                return command;
+            }
+        }
+        return Command.UNKNOWN;
+    }
+
+    /**
+     * @return Everything after the command word, trimmed. Empty string if there is no argument
+     */
+    String argument() {
+        return string(argStart, argEnd);
+    }
+
+    /**
+     * @return The first word of the argument: the sender of a msg or privmsg. Known senders
+     * come from the sender pool without decoding
+     */
+    String sender() {
+        int senderEnd = senderEnd();
+        return argStart < senderEnd
+                ? SenderPool.intern(buf, argStart, senderEnd - argStart, codec) : "";
+    }
+
+    /**
+     * @return The argument after the first word: the text of a msg or privmsg. Empty string
+     * if there is no text
+     */
+    String text() {
+        int senderEnd = senderEnd();
+        int textStart = senderEnd < argEnd ? senderEnd + 1 : argEnd;
+        return string(textStart, argEnd);
+    }
+
+    /**
+     * @return The text of a msg or privmsg as UTF-8, copied from the buffer
+     */
+    byte[] textBytes() {
+        int senderEnd = senderEnd();
+        int textStart = senderEnd < argEnd ? senderEnd + 1 : argEnd;
+        return Arrays.copyOfRange(buf, textStart, argEnd);
+    }
+
+    /**
+     * @return The argument split into space-separated words (user names, supported commands)
+     */
+    String[] words() {
+        int count = 0;
+        int i = argStart;
+        while (i < argEnd) {
+            count++;
+            while (i < argEnd && buf[i] != ' ') {
+                i++;
+            }
+            i = skipSpace(buf, i, argEnd);
+        }
+        if (count == 0) {
+            return NO_WORDS;
+        }
+        String[] words = new String[count];
+        int n = 0;
+        i = argStart;
+        while (i < argEnd) {
+            int wordStart = i;
+            while (i < argEnd && buf[i] != ' ') {
+                i++;
+            }
+            words[n++] = string(wordStart, i);
+            i = skipSpace(buf, i, argEnd);
+        }
+        return words;
+    }
+
+    private int senderEnd() {
+        int i = argStart;
+        while (i < argEnd && buf[i] != ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private String string(int start, int end) {
+        return start < end ? codec.decode(buf, start, end - start) : "";
+    }
+
+    private static int skipSpace(byte[] buf, int start, int end) {
+        while (start < end && isSpace(buf[start])) {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimEnd(byte[] buf, int start, int end) {
+        while (end > start && isSpace(buf[end - 1])) {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isSpace(byte b) {
+        // Same rule as String.trim(): every control character and space. Bytes of
+        // multi-byte characters are negative and never match.
+        return b >= 0 && b <= ' ';
+    }
+}
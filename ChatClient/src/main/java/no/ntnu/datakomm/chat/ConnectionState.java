@@ -0,0 +1,11 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * State of the connection of a TCPClient, as reported by its metrics
+ */
+public enum ConnectionState {
+    DISCONNECTED,
+    CONNECTED,
+    // The connection was lost and the client is trying to connect again
+    RECONNECTING
+}
@@ -0,0 +1,282 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.Closeable;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Delivers chat events to the listeners on a separate thread, so that a slow listener does not
+ * stall reading from the socket. Events are kept in a bounded ring buffer and delivered by a
+ * single thread in the order they were submitted, so every listener sees the events in the
+ * same order as the server sent them. One dispatcher can be shared by several TCPClients.
+ *
+ * What happens when the buffer is full is decided by the OverflowPolicy.
+ */
+public class EventDispatcher implements Closeable {
+
+    /**
+     * What to do when an event is submitted while the buffer is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait until the listeners have consumed an event. Nothing is lost, but the reading
+         * thread stalls while the buffer is full. A listener submitting an event (for example
+         * by calling the client) runs on the delivery thread and can't wait for it, so then the
+         * oldest buffered event is discarded instead.
+         */
+        BLOCK,
+        /**
+         * Discard the oldest buffered event to make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Discard a buffered user list or supported command list that is made obsolete by the
+         * new event. If there is no such event, wait like BLOCK does.
+         */
+        COALESCE
+    }
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private final OverflowPolicy policy;
+    private final ChatEvent[] events;
+    private final ChatListener[][] targets;
+    // Metrics of the client each event is for, also identifying the client
+    private final ClientMetrics[] sources;
+    private int head = 0;
+    private int count = 0;
+    private boolean running = true;
+    // True while the worker is delivering an event taken from the buffer
+    private boolean delivering = false;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread worker;
+
+    /**
+     * Create a dispatcher holding up to 1024 events, blocking when full.
+     */
+    public EventDispatcher() {
+        this(DEFAULT_CAPACITY, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Create a dispatcher and start its delivery thread.
+     *
+     * @param capacity Maximum number of buffered events
+     * @param policy   What to do when the buffer is full
+     */
+    public EventDispatcher(int capacity, OverflowPolicy policy) {
+        this(capacity, policy, ChatThreads.platformFactory("chat-event-dispatcher", true));
+    }
+
+    /**
+     * Create a dispatcher and start its delivery thread.
+     *
+     * @param capacity      Maximum number of buffered events
+     * @param policy        What to do when the buffer is full
+     * @param threadFactory Factory for the delivery thread
+     */
+    public EventDispatcher(int capacity, OverflowPolicy policy, ThreadFactory threadFactory) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.policy = policy;
+        this.events = new ChatEvent[capacity];
+        this.targets = new ChatListener[capacity][];
+        this.sources = new ClientMetrics[capacity];
+        this.worker = threadFactory.newThread(this::deliverEvents);
+        this.worker.start();
+    }
+
+    /**
+     * Queue an event for delivery.
+     *
+     * @param source    Metrics of the client that received the event. The time each listener
+     *                  takes is recorded there. May be null
+     * @param event     The event
+     * @param listeners The listeners that must receive it
+     */
+    void submit(ClientMetrics source, ChatEvent event, ChatListener[] listeners) {
+        lock.lock();
+        try {
+            while (running && count == events.length) {
+                if (policy == OverflowPolicy.DROP_OLDEST) {
+                    removeAt(0);
+                } else if (policy == OverflowPolicy.COALESCE && coalesce(source, event)) {
+                    // Made room
+                } else if (Thread.currentThread() == worker) {
+                    // Submitted by a listener: only this thread makes room, it can't wait
+                    removeAt(0);
+                } else {
+                    notFull.awaitUninterruptibly();
+                }
+            }
+            if (!running) {
+                return;
+            }
+            int tail = (head + count) % events.length;
+            events[tail] = event;
+            targets[tail] = listeners;
+            sources[tail] = source;
+            count++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Number of events currently waiting for delivery
+     */
+    public int getQueuedCount() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Number of events discarded because the buffer was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Stop the delivery thread. Events still in the buffer are discarded.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            running = false;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until the buffer is drained or the timeout expires. Mostly useful in tests.
+     *
+     * @param timeout Maximum time to wait
+     * @param unit    Unit of the timeout
+     * @return true if all submitted events were delivered
+     * @throws InterruptedException When interrupted while waiting
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (count > 0 || delivering) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the newest buffered event which the given event makes obsolete.
+     *
+     * @return true if an event was removed
+     */
+    private boolean coalesce(ClientMetrics source, ChatEvent event) {
+        if (!event.isCoalescable()) {
+            return false;
+        }
+        for (int i = count - 1; i >= 0; i--) {
+            int index = (head + i) % events.length;
+            if (events[index].getType() == event.getType() && sources[index] == source) {
+                removeAt(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove the event at the given position (0 = oldest), keeping the order of the others.
+     */
+    private void removeAt(int position) {
+        dropped.incrementAndGet();
+        if (position == 0) {
+            events[head] = null;
+            targets[head] = null;
+            sources[head] = null;
+            head = (head + 1) % events.length;
+            count--;
+            return;
+        }
+        for (int i = position; i < count - 1; i++) {
+            int to = (head + i) % events.length;
+            int from = (head + i + 1) % events.length;
+            events[to] = events[from];
+            targets[to] = targets[from];
+            sources[to] = sources[from];
+        }
+        int last = (head + count - 1) % events.length;
+        events[last] = null;
+        targets[last] = null;
+        sources[last] = null;
+        count--;
+    }
+
+    /**
+     * The loop of the delivery thread.
+     */
+    private void deliverEvents() {
+        while (true) {
+            ChatEvent event;
+            ChatListener[] listeners;
+            ClientMetrics metrics;
+            lock.lock();
+            try {
+                delivering = false;
+                notFull.signalAll();
+                while (running && count == 0) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (!running) {
+                    return;
+                }
+                event = events[head];
+                listeners = targets[head];
+                metrics = sources[head];
+                events[head] = null;
+                targets[head] = null;
+                sources[head] = null;
+                head = (head + 1) % events.length;
+                count--;
+                delivering = true;
+            } finally {
+                lock.unlock();
+            }
+            for (ChatListener listener : listeners) {
+                long start = System.nanoTime();
+                try {
+                    event.deliverTo(listener);
+                } catch (RuntimeException e) {
+                    System.out.println("Chat listener failed: " + e);
+                }
+                if (metrics != null) {
+                    metrics.listenerCalled(listener, System.nanoTime() - start);
+                }
+            }
+        }
+    }
+}
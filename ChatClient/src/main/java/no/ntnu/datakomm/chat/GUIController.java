@@ -1,17 +1,20 @@
 package no.ntnu.datakomm.chat;
 
-import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
 import javafx.scene.input.KeyCode;
-import javafx.scene.layout.HBox;
-import javafx.scene.layout.Pane;
-import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
 
 import static java.lang.Thread.sleep;
 
-import javafx.collections.ObservableList;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * The graphical interface containing all the user interface controls: buttons, inputs, etc.
@@ -40,7 +43,7 @@ public class GUIController implements ChatListener {
     private VBox userList;
 
     @FXML
-    private VBox textOutput;
+    private ListView<MessageHistory.Entry> textOutput;
 
     @FXML
     private TextArea textInput;
@@ -57,35 +60,111 @@ public class GUIController implements ChatListener {
     @FXML
     private TitledPane serverStatus;
 
-    @FXML
-    private ScrollPane outputScroll;
-
     // The TCP client that can connect, send commands, etc.
     private TCPClient tcpClient;
 
+    // How many messages the chat window keeps in memory. Older ones are dropped (or spilled to the
+    // file given in the chat.history.spillFile system property)
+    private static final int HISTORY_RETENTION = Integer.getInteger("chat.history.retention", 1000);
+
+    // When true (chat.reconnect system property), a lost connection is restored automatically
+    // and messages typed meanwhile are sent afterwards
+    private static final boolean AUTO_RECONNECT = Boolean.getBoolean("chat.reconnect");
+
+    // When above 0 (chat.outboundQueue system property), messages typed while offline are queued
+    // and sent after the next login. They are kept in the file given in chat.outboundQueue.file,
+    // if any, so they survive a restart
+    private static final int OUTBOUND_QUEUE_CAPACITY = Integer.getInteger("chat.outboundQueue", 0);
+
+    // The messages shown in the chat window
+    private MessageHistory history;
+
+    // Maximum number of messages shown for a /search or /from command
+    private static final int MAX_SEARCH_RESULTS = 20;
+
+    // Maximum number of GUI updates applied per frame, the rest wait for the next frame
+    private static final int MAX_UPDATES_PER_FRAME = 200;
+
+    // All GUI updates coming from background threads go through this pump, which applies them
+    // in batches once per frame instead of flooding the JavaFX event queue
+    private final UiUpdatePump uiUpdates = new UiUpdatePump(MAX_UPDATES_PER_FRAME);
+
+    // Keys of GUI updates where only the newest one matters
+    private static final String USER_LIST_UPDATE = "userList";
+    private static final String BUTTON_UPDATE = "buttons";
+    private static final String SCROLL_UPDATE = "scroll";
+
     // Active user list will be refreshed periodically. This will be done on a separate CPU Thread to avoid blocking
     // the GUI.
     private Thread userPollThread;
 
+    // The labels currently shown in userList, by username. Only accessed on the GUI thread
+    private final Map<String, Label> userLabels = new HashMap<>();
+
     /**
      * Called by the FXML loader after the labels declared above are injected:
      */
     public void initialize() {
         tcpClient = new TCPClient();
+        if (AUTO_RECONNECT) {
+            tcpClient.setReconnectPolicy(new ReconnectPolicy());
+            tcpClient.setReplayUnsent(true);
+        }
+        if (OUTBOUND_QUEUE_CAPACITY > 0) {
+            String queueFile = System.getProperty("chat.outboundQueue.file");
+            try {
+                tcpClient.setOutboundQueue(queueFile != null
+                        ? new OutboundQueue(OUTBOUND_QUEUE_CAPACITY, Paths.get(queueFile))
+                        : new OutboundQueue(OUTBOUND_QUEUE_CAPACITY));
+            } catch (IOException e) {
+                System.out.println("Can't open outbound queue file: " + e.getMessage());
+            }
+        }
         hostInput.setText("datakomm.work");
         portInput.setText("1300");
-        textOutput.heightProperty().addListener((observable, oldValue, newValue)
-                -> outputScroll.setVvalue(1.0));
+        history = new MessageHistory(HISTORY_RETENTION);
+        String spillFile = System.getProperty("chat.history.spillFile");
+        if (spillFile != null) {
+            try {
+                history.setSpillFile(Paths.get(spillFile));
+            } catch (IOException e) {
+                System.out.println("Can't open history spill file: " + e.getMessage());
+            }
+        }
+        // With a store (chat.history.store system property, a directory), the history is kept on
+        // disk across runs, can be searched, and older messages are paged in from disk
+        String storeDir = System.getProperty("chat.history.store");
+        if (storeDir != null) {
+            try {
+                history.setStore(new MessageStore(Paths.get(storeDir)));
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Can't open message store: " + e.getMessage());
+            }
+        }
+        textOutput.setItems(history);
+        if (!history.isEmpty()) {
+            textOutput.scrollTo(history.size() - 1);
+        }
+        textOutput.setCellFactory(listView -> new MessageCell(listView));
+        uiUpdates.start();
         setKeyAndClickListeners();
     }
 
+    /**
+     * Called when the application exits: disconnect, and write the message store to disk
+     */
+    public void shutdown() {
+        tcpClient.disconnect();
+        history.close();
+    }
+
     /**
      * Initialize handling for all GUI events: clicking on buttons, and key presses
      */
     private void setKeyAndClickListeners() {
         connectBtn.setOnMouseClicked(event -> {
             // Mouse clicked on "Connect" button
-            if (tcpClient.isConnectionActive()) {
+            if (tcpClient.isConnectionActive() || tcpClient.isReconnecting()) {
                 tcpClient.disconnect();
                 updateButtons(false);
             } else {
@@ -130,9 +209,14 @@ public class GUIController implements ChatListener {
      */
     private void inputSubmit() {
         String msgToSend = textInput.getText();
-        if (!msgToSend.isEmpty()) {
+        if (searchHistory(msgToSend)) {
+            textInput.setText("");
+        } else if (!msgToSend.isEmpty()) {
             TextMessage msg;
-            if (tcpClient.isConnectionActive()) {
+            // While reconnecting, or offline with an outbound queue, the client keeps the message
+            // and sends it afterwards
+            if (tcpClient.isConnectionActive() || tcpClient.isReconnecting()
+                    || tcpClient.isQueueingWhileOffline()) {
                 // Split the message in max 3 parts. If the first one is "/privmsg", then recipient is the second
                 // part and the text to send is the third. Otherwise, the whole message is sent as a public message.
                 String[] msgParts = msgToSend.split(" ", 3);
@@ -152,6 +236,37 @@ public class GUIController implements ChatListener {
         }
     }
 
+    /**
+     * Handle the local history commands: "/search words" shows the newest messages containing
+     * all the words, "/from user" the newest messages of a user. Only available with a message
+     * store.
+     *
+     * @param input The text typed by the user
+     * @return true if the input was a history command
+     */
+    private boolean searchHistory(String input) {
+        MessageStore store = history.getStore();
+        String[] parts = input.trim().split(" ", 2);
+        if (store == null || parts.length < 2
+                || !(parts[0].equals("/search") || parts[0].equals("/from"))) {
+            return false;
+        }
+        List<MessageStore.Record> found = parts[0].equals("/search")
+                ? store.search(parts[1], MAX_SEARCH_RESULTS)
+                : store.findBySender(parts[1].trim(), MAX_SEARCH_RESULTS);
+        StringBuilder result = new StringBuilder("Found " + found.size() + " message(s)");
+        // Oldest first, like the chat window
+        for (int i = found.size() - 1; i >= 0; i--) {
+            TextMessage m = found.get(i).getMessage();
+            result.append("\n").append(m.getSender()).append(": ").append(m.getText());
+        }
+        // Only shown: stored, the results would turn up in later searches
+        history.addTransient(new MessageHistory.Entry(
+                new TextMessage("info", false, result.toString()), true, true, false));
+        scrollToEnd();
+        return true;
+    }
+
     /**
      * Add a message to the GUI chat window
      *
@@ -161,58 +276,25 @@ public class GUIController implements ChatListener {
      * @param warning When true, this message is a warning that must be displayed to the user
      */
     private void addMsgToGui(boolean local, TextMessage msg, boolean warning) {
-        // Create GUI elements, set their text and style according to what
-        // type of message this is
-
-        HBox message = new HBox();
-        VBox messageContent = new VBox();
-        String senderText;
-        Label messageSender = new Label();
-        messageSender.getStyleClass().add("sender");
-        if (msg.isPrivate()) {
-            senderText = "Private from " + msg.getSender() + ":";
-            messageSender.getStyleClass().add("private");
-        } else {
-            senderText = msg.getSender() + ":";
+        // The ListView creates and styles the GUI elements for the visible messages only,
+        // here we just record what type of message this is
+        boolean failed = false;
+        // Not just OUTBOUND_QUEUE_CAPACITY > 0: opening the queue may have failed
+        boolean queued = tcpClient.isReconnecting() || tcpClient.isQueueingWhileOffline();
+        if (!warning && local && !tcpClient.isConnectionActive() && !queued) {
+            // Trying to send a message without an active connection
+            serverStatus.setText("Please login to send messages to server");
+            failed = true;
         }
-        messageSender.setText(senderText);
-        Label messageText = new Label(msg.getText());
-        ObservableList<String> textStyle = messageText.getStyleClass();
-        textStyle.add("message");
-        messageText.setWrapText(true);
-        Pane spacer = new Pane();
-        HBox.setHgrow(spacer, Priority.ALWAYS);
-        spacer.setMinSize(10, 1);
-        if (warning) {
-            // This message is a warning/info, add specific style to it
-            messageContent.getChildren().addAll(messageText);
-            message.getChildren().addAll(messageContent);
-            if (msg.getSender().equals("err")) {
-                textStyle.add("warning");
-            } else {
-                textStyle.add("info");
-            }
-        } else {
-            // Regular message
-            if (local) {
-                if (tcpClient.isConnectionActive()) {
-                    textStyle.add("sentMessage");
-                } else {
-                    // Trying to send a message without an active connection
-                    serverStatus.setText("Please login to send messages to server");
-                    textStyle.add("failedMessage");
-                }
-                // Add empty space first (left), then the message (right)
-                messageContent.getChildren().addAll(messageText);
-                message.getChildren().addAll(spacer, messageContent);
-            } else {
-                textStyle.add("otherMessage");
-                // Add message first (left), then empty space (right)
-                messageContent.getChildren().addAll(messageSender, messageText);
-                message.getChildren().addAll(messageContent, spacer);
-            }
-        }
-        textOutput.getChildren().add(message);
+        history.add(new MessageHistory.Entry(msg, local, warning, failed));
+        scrollToEnd();
+    }
+
+    /**
+     * Scroll the chat window to the newest message, once per frame, not once per message
+     */
+    private void scrollToEnd() {
+        uiUpdates.postCoalesced(SCROLL_UPDATE, () -> textOutput.scrollTo(history.size() - 1));
     }
 
     /**
@@ -228,7 +310,7 @@ public class GUIController implements ChatListener {
         connectBtn.setDisable(true);
 
         // Run the connection in a new background thread to avoid GUI freeze
-        Thread connThread = new Thread(() -> {
+        Thread connThread = tcpClient.getThreadFactory().newThread(() -> {
             boolean connected = tcpClient.connect(host, Integer.parseInt(port));
             if (connected) {
                 // Connection established, start listening processes
@@ -258,8 +340,8 @@ public class GUIController implements ChatListener {
             status = "Not connected: " + tcpClient.getLastError();
             connBtnText = "Connect";
         }
-        // Make sure this will be executed on GUI thread
-        Platform.runLater(() -> {
+        // Make sure this will be executed on GUI thread. Only the latest state matters
+        uiUpdates.postCoalesced(BUTTON_UPDATE, () -> {
             // Update button texts
             serverStatus.setText(status);
             connectBtn.setText(connBtnText);
@@ -288,7 +370,7 @@ public class GUIController implements ChatListener {
         // Make sure we have just one polling thread, not duplicates
         if (userPollThread == null) {
 
-            userPollThread = new Thread(() -> {
+            userPollThread = tcpClient.getThreadFactory().newThread(() -> {
                 ////////////////////////////////////////////////////////////////
                 // This block of code will run in the polling thread
                 ////////////////////////////////////////////////////////////////
@@ -298,9 +380,10 @@ public class GUIController implements ChatListener {
                 while (tcpClient.isConnectionActive()) {
                     // TcpClient will ask server to send the latest user list. The response from the server will
                     // not be handled here! Here we only ask for update and go to sleep. Then repeat.
+                    // The sleep time grows while the user list does not change.
                     tcpClient.refreshUserList();
                     try {
-                        sleep(3000);
+                        sleep(tcpClient.getUserPresence().nextPollInterval());
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
                     }
@@ -328,8 +411,8 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onLoginResult(boolean success, String errMsg) {
-        // Update the GUI. Do it on the GUI thread with Platform.runLater()
-        Platform.runLater(() -> {
+        // Update the GUI. Do it on the GUI thread with the update pump
+        uiUpdates.post(() -> {
             if (success) {
                 serverStatus.setText("Server - login successful");
             } else {
@@ -347,7 +430,7 @@ public class GUIController implements ChatListener {
     @Override
     public void onMessageReceived(TextMessage message) {
         // Show the message in the GUI. Do it on the GUI thread.
-        Platform.runLater(() -> addMsgToGui(false, message, false));
+        uiUpdates.post(() -> addMsgToGui(false, message, false));
     }
 
     /**
@@ -359,7 +442,7 @@ public class GUIController implements ChatListener {
     @Override
     public void onMessageError(String errMsg) {
         // Show error message in the GUI. Do it on the GUI thread.
-        Platform.runLater(() -> addMsgToGui(true, new TextMessage("err", false,
+        uiUpdates.post(() -> addMsgToGui(true, new TextMessage("err", false,
                 "Error: " + errMsg), true));
     }
 
@@ -371,21 +454,62 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onUserList(String[] usernames) {
-        // Update the user list. Do it on the GUI thread.
-        Platform.runLater(() -> {
-            userList.getChildren().clear();
-            for (String user : usernames) {
-                Label text = new Label(user);
-                text.getStyleClass().add("user");
-                // Set an "on-click" listener for the item in the user list - allow to send a private message
-                text.setOnMouseClicked(event -> {
-                    textInput.setText("/privmsg " + user + " ");
-                    textInput.requestFocus();
-                    textInput.end();
-                });
+        // Nothing to do here: the changes in the list are delivered to onUsersChanged(), which
+        // updates only the affected rows
+    }
+
+    /**
+     * This method is called when users have logged in or out
+     *
+     * @param joined Users that have logged in
+     * @param left   Users that have logged out
+     */
+    @Override
+    public void onUsersChanged(List<String> joined, List<String> left) {
+        // Patch the user list on the GUI thread. Several changes arriving within one frame are
+        // applied together, by bringing the list in line with the latest known users.
+        uiUpdates.postCoalesced(USER_LIST_UPDATE, this::syncUserList);
+    }
+
+    /**
+     * Bring the user list in line with the users currently known to the TCP client. Only the rows
+     * of users who joined or left are touched. Must be called on the GUI thread.
+     */
+    private void syncUserList() {
+        Set<String> current = new LinkedHashSet<>(tcpClient.getUserPresence().getUsers());
+        Iterator<Map.Entry<String, Label>> rows = userLabels.entrySet().iterator();
+        while (rows.hasNext()) {
+            Map.Entry<String, Label> row = rows.next();
+            if (!current.contains(row.getKey())) {
+                userList.getChildren().remove(row.getValue());
+                rows.remove();
+            }
+        }
+        for (String user : current) {
+            if (!userLabels.containsKey(user)) {
+                Label text = createUserLabel(user);
+                userLabels.put(user, text);
                 userList.getChildren().add(text);
             }
+        }
+    }
+
+    /**
+     * Create a row for the user list
+     *
+     * @param user Username to show
+     * @return The label
+     */
+    private Label createUserLabel(String user) {
+        Label text = new Label(user);
+        text.getStyleClass().add("user");
+        // Set an "on-click" listener for the item in the user list - allow to send a private message
+        text.setOnMouseClicked(event -> {
+            textInput.setText("/privmsg " + user + " ");
+            textInput.requestFocus();
+            textInput.end();
         });
+        return text;
     }
 
     /**
@@ -397,7 +521,7 @@ public class GUIController implements ChatListener {
     @Override
     public void onSupportedCommands(String[] commands) {
         // Show the commands in the GUI. Do it on the GUI thread.
-        Platform.runLater(() -> {
+        uiUpdates.post(() -> {
             StringBuilder listOfCommands = new StringBuilder(
                     "Commands available: ");
             for (String c : commands) {
@@ -418,7 +542,7 @@ public class GUIController implements ChatListener {
     @Override
     public void onCommandError(String errMsg) {
         // Shoe error message. Do it on the GUI thread.
-        Platform.runLater(() -> {
+        uiUpdates.post(() -> {
             TextMessage msg = new TextMessage("err", false, "Error: " + errMsg);
             addMsgToGui(true, msg, true);
         });
@@ -433,4 +557,34 @@ public class GUIController implements ChatListener {
         System.out.println("Socket closed by the remote end");
         updateButtons(false);
     }
+
+    /**
+     * This method is called when the connection was lost and the client waits before trying
+     * to connect again. Messages can still be typed, they are sent after reconnecting.
+     *
+     * @param attempt     Number of the coming attempt
+     * @param delayMillis Time until the attempt is made
+     */
+    @Override
+    public void onReconnecting(int attempt, long delayMillis) {
+        String status = "Connection lost: " + tcpClient.getLastError() + " Reconnecting in "
+                + (delayMillis / 1000.0) + " s (attempt " + attempt + ")";
+        uiUpdates.postCoalesced(BUTTON_UPDATE, () -> {
+            serverStatus.setText(status);
+            connectBtn.setText("Disconnect");
+            connectBtn.setDisable(false);
+            loginBtn.setDisable(true);
+            submitBtn.setDisable(false);
+            helpBtn.setDisable(true);
+        });
+    }
+
+    /**
+     * This method is called when the connection is restored, and the user logged in again
+     */
+    @Override
+    public void onReconnected() {
+        updateButtons(true);
+        startUserPolling();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,159 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts protocol lines between Strings and UTF-8 bytes. The protocol is UTF-8 no matter what
+ * the platform default charset is. Almost all traffic is ASCII (the command words, user names
+ * and most messages), so ASCII text is copied byte for byte without going through the charset
+ * coders; only lines with other characters use the encoder and decoder, which are created once
+ * and reused.
+ *
+ * Lines have a maximum length, so that a peer sending a line without end can't make a reader
+ * buffer grow without limit, and a caller can't send a line the server would refuse.
+ *
+ * Not thread-safe: every reading or writing thread needs its own codec.
+ */
+class LineCodec {
+    // Maximum length of a line in bytes, without the line terminator, unless configured
+    // otherwise (chat.maxLineLength system property)
+    static final int DEFAULT_MAX_LINE_LENGTH = Integer.getInteger("chat.maxLineLength", 65536);
+    // Bytes a UTF-8 encoder produces at most for one char
+    private static final int MAX_BYTES_PER_CHAR = 3;
+
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private CharBuffer chars = CharBuffer.allocate(256);
+
+    /**
+     * Decode UTF-8 bytes. Invalid bytes become the replacement character.
+     *
+     * @param buf    Buffer holding the bytes
+     * @param offset Index of the first byte
+     * @param length Number of bytes
+     * @return The decoded text
+     */
+    String decode(byte[] buf, int offset, int length) {
+        if (length == 0) {
+            return "";
+        }
+        if (isAscii(buf, offset, length)) {
+            // ISO-8859-1 maps every byte to the same char, and a String can take the bytes as
+            // they are
+            return new String(buf, offset, length, StandardCharsets.ISO_8859_1);
+        }
+        if (chars.capacity() < length) {
+            chars = CharBuffer.allocate(Math.max(length, chars.capacity() * 2));
+        }
+        chars.clear();
+        decoder.reset();
+        ByteBuffer in = ByteBuffer.wrap(buf, offset, length);
+        decoder.decode(in, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        return chars.toString();
+    }
+
+    /**
+     * Decode the remaining bytes of a buffer, see decode(byte[], int, int). The position of the
+     * buffer is moved to its limit.
+     *
+     * @param bytes A heap buffer holding the bytes
+     * @return The decoded text
+     */
+    String decode(ByteBuffer bytes) {
+        String text = decode(bytes.array(), bytes.arrayOffset() + bytes.position(),
+                bytes.remaining());
+        bytes.position(bytes.limit());
+        return text;
+    }
+
+    /**
+     * @param text Text to encode
+     * @return Space needed to encode the text, in bytes. The real length may be smaller
+     */
+    static int maxEncodedLength(CharSequence text) {
+        return text.length() * MAX_BYTES_PER_CHAR;
+    }
+
+    /**
+     * Encode text as UTF-8 into a byte array. The array must have room for
+     * maxEncodedLength(text) bytes from the offset on.
+     *
+     * @param text   Text to encode
+     * @param dst    Array to write to
+     * @param offset Index of the first byte to write
+     * @return Index after the last byte written
+     */
+    int encode(CharSequence text, byte[] dst, int offset) {
+        int n = text.length();
+        int i = 0;
+        while (i < n) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                break;
+            }
+            dst[offset + i] = (byte) c;
+            i++;
+        }
+        if (i == n) {
+            return offset + n;
+        }
+        // Not ASCII, encode the rest with the encoder
+        ByteBuffer out = ByteBuffer.wrap(dst, offset + i, dst.length - offset - i);
+        encoder.reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(text, i, n), out, true);
+        if (result.isOverflow()) {
+            throw new IllegalArgumentException("No room to encode the text");
+        }
+        encoder.flush(out);
+        return out.position();
+    }
+
+    /**
+     * @param text          A line, without the line terminator
+     * @param maxLineLength Maximum length of a line in bytes
+     * @return true if the line, encoded, is not longer than the maximum line length
+     */
+    static boolean fits(CharSequence text, int maxLineLength) {
+        int n = text.length();
+        if (n <= maxLineLength / MAX_BYTES_PER_CHAR) {
+            return true;
+        }
+        int bytes = 0;
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                // The surrogate pair is one 4-byte sequence
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes <= maxLineLength;
+    }
+
+    private static boolean isAscii(byte[] buf, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            if (buf[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,104 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads newline-terminated lines from a blocking input stream into one reusable byte buffer.
+ * Unlike BufferedReader.readLine() no String is created per line: the caller gets the
+ * position of the line inside the buffer and can decode it in place. Not thread-safe.
+ */
+class LineReader {
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private final int maxLineLength;
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    // Bytes in buffer[readPos..limit) have been received but not returned yet
+    private int readPos = 0;
+    private int limit = 0;
+    private int lineStart = 0;
+
+    /**
+     * @param in            The stream to read from
+     * @param maxLineLength Maximum length of a line in bytes. A longer line is an error
+     */
+    LineReader(InputStream in, int maxLineLength) {
+        this.in = in;
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Block until a complete line is received.
+     *
+     * @return Length of the line without the line terminator, or -1 when the stream is closed
+     * @throws IOException When reading from the stream fails, or the line is longer than the
+     *                     maximum line length
+     */
+    int readLine() throws IOException {
+        int scanFrom = readPos;
+        while (true) {
+            for (int i = scanFrom; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    lineStart = readPos;
+                    readPos = i + 1;
+                    int end = i;
+                    if (end > lineStart && buffer[end - 1] == '\r') {
+                        end--;
+                    }
+                    if (end - lineStart > maxLineLength) {
+                        throw new IOException("Line longer than " + maxLineLength + " bytes");
+                    }
+                    return end - lineStart;
+                }
+            }
+            // No complete line yet, everything up to limit has been scanned
+            if (limit - readPos > maxLineLength + 1) {
+                // One more byte is allowed for a \r before the \n
+                throw new IOException("Line longer than " + maxLineLength + " bytes");
+            }
+            if (readPos == limit) {
+                readPos = 0;
+                limit = 0;
+            } else if (limit == buffer.length) {
+                makeRoom();
+            }
+            scanFrom = limit;
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                return -1;
+            }
+            limit += read;
+        }
+    }
+
+    /**
+     * @return The buffer holding the last line. Valid until the next call to readLine()
+     */
+    byte[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * @return Index of the first byte of the last line in buffer()
+     */
+    int lineStart() {
+        return lineStart;
+    }
+
+    /**
+     * Move the unread bytes to the start of the buffer, grow it if it is full.
+     */
+    private void makeRoom() {
+        if (readPos > 0) {
+            int unread = limit - readPos;
+            System.arraycopy(buffer, readPos, buffer, 0, unread);
+            readPos = 0;
+            limit = unread;
+        } else {
+            byte[] bigger = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, bigger, 0, limit);
+            buffer = bigger;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A copy-on-write set of chat listeners. Registering and unregistering happens rarely (GUI or
+ * connect threads) and is synchronized; every change publishes a fresh array. Delivering events
+ * happens for every incoming command and only reads the current array, without any locking,
+ * so listeners can be added and removed while events are being delivered.
+ */
+class ListenerRegistry {
+    private static final ChatListener[] EMPTY = new ChatListener[0];
+
+    // Index for O(1) duplicate and membership checks. Guarded by this
+    private final Set<ChatListener> members = new HashSet<>();
+    // The published snapshot. Never modified after it has been published
+    private volatile ChatListener[] snapshot = EMPTY;
+
+    /**
+     * Add a listener, unless it is registered already
+     *
+     * @param listener The listener to add
+     * @return true if the listener was added
+     */
+    synchronized boolean add(ChatListener listener) {
+        if (listener == null || !members.add(listener)) {
+            return false;
+        }
+        ChatListener[] current = snapshot;
+        ChatListener[] updated = new ChatListener[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = listener;
+        snapshot = updated;
+        return true;
+    }
+
+    /**
+     * Remove a listener
+     *
+     * @param listener The listener to remove
+     * @return true if the listener was registered
+     */
+    synchronized boolean remove(ChatListener listener) {
+        if (!members.remove(listener)) {
+            return false;
+        }
+        ChatListener[] current = snapshot;
+        ChatListener[] updated = new ChatListener[current.length - 1];
+        int n = 0;
+        for (ChatListener l : current) {
+            if (!l.equals(listener)) {
+                updated[n++] = l;
+            }
+        }
+        snapshot = updated;
+        return true;
+    }
+
+    /**
+     * @param listener The listener to look for
+     * @return true if the listener is registered
+     */
+    synchronized boolean contains(ChatListener listener) {
+        return members.contains(listener);
+    }
+
+    /**
+     * @return The registered listeners in registration order. The array must not be modified
+     */
+    ChatListener[] snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return true if no listener is registered
+     */
+    boolean isEmpty() {
+        return snapshot.length == 0;
+    }
+}
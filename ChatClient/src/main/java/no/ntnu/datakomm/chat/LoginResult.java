@@ -0,0 +1,32 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * The outcome of a login request
+ */
+public class LoginResult {
+
+    private final boolean success;
+    private final String errMsg;
+
+    /**
+     * @param success When true, the login succeeded
+     * @param errMsg Error message from the server in case of failure, null on success
+     */
+    public LoginResult(boolean success, String errMsg) {
+        this.success = success;
+        this.errMsg = errMsg;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public String getErrMsg() {
+        return errMsg;
+    }
+
+    @Override
+    public String toString() {
+        return success ? "loginok" : "loginerr " + errMsg;
+    }
+}
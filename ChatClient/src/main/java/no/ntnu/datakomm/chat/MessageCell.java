@@ -0,0 +1,79 @@
+package no.ntnu.datakomm.chat;
+
+import javafx.scene.control.ContentDisplay;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Pane;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+
+/**
+ * A row in the chat history list. The ListView only creates as many cells as fit on the screen
+ * and reuses them while scrolling, so the node tree is built once per cell and only the texts and
+ * style classes are updated for every message shown in it.
+ */
+class MessageCell extends ListCell<MessageHistory.Entry> {
+
+    // Style classes that depend on the message, removed before a cell is reused
+    private static final String[] MESSAGE_STYLES = {
+            "sentMessage", "failedMessage", "otherMessage", "warning", "info"
+    };
+
+    private final HBox message = new HBox();
+    private final VBox messageContent = new VBox();
+    private final Label messageSender = new Label();
+    private final Label messageText = new Label();
+    private final Pane spacer = new Pane();
+
+    /**
+     * @param listView The list the cell belongs to, used to limit the width of the message text
+     */
+    MessageCell(ListView<MessageHistory.Entry> listView) {
+        messageSender.getStyleClass().add("sender");
+        messageText.getStyleClass().add("message");
+        messageText.setWrapText(true);
+        messageText.maxWidthProperty().bind(listView.widthProperty().subtract(40));
+        HBox.setHgrow(spacer, Priority.ALWAYS);
+        spacer.setMinSize(10, 1);
+        setContentDisplay(ContentDisplay.GRAPHIC_ONLY);
+    }
+
+    @Override
+    protected void updateItem(MessageHistory.Entry entry, boolean empty) {
+        super.updateItem(entry, empty);
+        if (empty || entry == null) {
+            setGraphic(null);
+            return;
+        }
+        TextMessage msg = entry.getMessage();
+        messageText.getStyleClass().removeAll(MESSAGE_STYLES);
+        messageSender.getStyleClass().remove("private");
+        messageText.setText(msg.getText());
+        if (msg.isPrivate()) {
+            messageSender.setText("Private from " + msg.getSender() + ":");
+            messageSender.getStyleClass().add("private");
+        } else {
+            messageSender.setText(msg.getSender() + ":");
+        }
+
+        if (entry.isWarning()) {
+            // This message is a warning/info, add specific style to it
+            messageContent.getChildren().setAll(messageText);
+            message.getChildren().setAll(messageContent);
+            messageText.getStyleClass().add(msg.getSender().equals("err") ? "warning" : "info");
+        } else if (entry.isLocal()) {
+            messageText.getStyleClass().add(entry.isFailed() ? "failedMessage" : "sentMessage");
+            // Add empty space first (left), then the message (right)
+            messageContent.getChildren().setAll(messageText);
+            message.getChildren().setAll(spacer, messageContent);
+        } else {
+            messageText.getStyleClass().add("otherMessage");
+            // Add message first (left), then empty space (right)
+            messageContent.getChildren().setAll(messageSender, messageText);
+            message.getChildren().setAll(messageContent, spacer);
+        }
+        setGraphic(message);
+    }
+}
@@ -0,0 +1,353 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javafx.collections.ObservableListBase;
+
+/**
+ * The chat history shown in the GUI: an observable list backed by a bounded ring buffer. When the
+ * buffer is full, the oldest message is dropped from the list (and optionally appended to a spill
+ * file on disk), so memory use stays flat no matter how long the client runs. The list is meant
+ * to back a ListView, which only creates nodes for the visible rows.
+ *
+ * With a message store, every message is also appended to the store and nothing is dropped
+ * from the list: the newest messages are served from the ring buffer and older ones are read
+ * from the store when the ListView scrolls to them. The list then also starts with the
+ * messages stored by earlier runs. The messages are appended by a background thread, so the
+ * GUI thread never waits for the disk. Messages added with addTransient() are only shown, not
+ * stored, and are dropped when they fall out of the buffer.
+ *
+ * Like every JavaFX list, it must only be modified on the GUI thread.
+ */
+public class MessageHistory extends ObservableListBase<MessageHistory.Entry> {
+
+    /**
+     * One row of the history
+     */
+    public static class Entry {
+        private final TextMessage message;
+        private final boolean local;
+        private final boolean warning;
+        private final boolean failed;
+
+        /**
+         * @param message The message
+         * @param local   When true, the message was sent by us
+         * @param warning When true, the message is a warning or info from the client
+         * @param failed  When true, the message could not be sent
+         */
+        public Entry(TextMessage message, boolean local, boolean warning, boolean failed) {
+            this.message = message;
+            this.local = local;
+            this.warning = warning;
+            this.failed = failed;
+        }
+
+        public TextMessage getMessage() {
+            return message;
+        }
+
+        public boolean isLocal() {
+            return local;
+        }
+
+        public boolean isWarning() {
+            return warning;
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+    }
+
+    // How long close() waits for the messages still to be appended to the store (milliseconds)
+    private static final long STORE_CLOSE_TIMEOUT = 5000;
+
+    private final Entry[] buffer;
+    // For every entry of the buffer: true if it is in the store
+    private final boolean[] stored;
+    private int head = 0;
+    private int count = 0;
+    private BufferedWriter spill;
+    private MessageStore store;
+    // Number of messages older than the buffer, only in the store. They are the first messages
+    // of the store, so their index in the list is their id
+    private int storedOnly = 0;
+    // Id of the next message appended to the store
+    private long nextId = 0;
+    // Appends the messages to the store
+    private ExecutorService storeWriter;
+    // Messages handed to the store writer and not appended yet, oldest first
+    private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+    // Set by the store writer when appending fails. The store is then dropped by the next add()
+    private volatile boolean storeFailed = false;
+
+    /**
+     * @param retention Maximum number of messages kept in memory
+     */
+    public MessageHistory(int retention) {
+        if (retention < 1) {
+            throw new IllegalArgumentException("retention must be at least 1");
+        }
+        this.buffer = new Entry[retention];
+        this.stored = new boolean[retention];
+    }
+
+    /**
+     * Append the messages that fall out of the buffer to a file, one line per message.
+     *
+     * @param file The file to append to, created if it does not exist
+     * @throws IOException When the file can't be opened
+     */
+    public void setSpillFile(Path file) throws IOException {
+        closeSpillFile();
+        spill = Files.newBufferedWriter(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Keep the whole history in a message store, see the class comment. Must be set while the
+     * history is empty.
+     *
+     * @param store The store to use
+     */
+    public void setStore(MessageStore store) {
+        if (count > 0) {
+            throw new IllegalStateException("The history must be empty when the store is set");
+        }
+        beginChange();
+        try {
+            this.store = store;
+            storeFailed = false;
+            storedOnly = (int) store.size();
+            nextId = store.size();
+            storeWriter = Executors.newSingleThreadExecutor(
+                    ChatThreads.platformFactory("message-store-writer", true));
+            if (size() > 0) {
+                nextAdd(0, size());
+            }
+        } finally {
+            endChange();
+        }
+    }
+
+    /**
+     * @return The message store, or null if the history is only kept in memory
+     */
+    public MessageStore getStore() {
+        return store;
+    }
+
+    /**
+     * Close the spill file, if there is one.
+     */
+    public void closeSpillFile() {
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                System.out.println("Error closing history spill file: " + e.getMessage());
+            }
+            spill = null;
+        }
+    }
+
+    /**
+     * Close the spill file and the store, after the messages still on their way to the store
+     * are appended. The history must not be used afterwards.
+     */
+    public void close() {
+        if (storeWriter != null) {
+            storeWriter.shutdown();
+            try {
+                storeWriter.awaitTermination(STORE_CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (store != null) {
+            store.close();
+        }
+        closeSpillFile();
+    }
+
+    /**
+     * Add a message at the end of the history, dropping the oldest one if the buffer is full.
+     *
+     * @param entry The message to add
+     * @return true
+     */
+    @Override
+    public boolean add(Entry entry) {
+        add(entry, true);
+        return true;
+    }
+
+    /**
+     * Add a message at the end of the history without storing it, for example the results of
+     * a search, which must not turn up in later searches. It is dropped from the list when it
+     * falls out of the buffer.
+     *
+     * @param entry The message to add
+     */
+    public void addTransient(Entry entry) {
+        add(entry, false);
+    }
+
+    private void add(Entry entry, boolean keep) {
+        beginChange();
+        try {
+            if (storeFailed && store != null) {
+                dropStore();
+            }
+            boolean toStore = keep && store != null;
+            if (toStore) {
+                storeEntry(entry);
+            }
+            if (count == buffer.length) {
+                Entry oldest = buffer[head];
+                boolean oldestStored = stored[head];
+                buffer[head] = null;
+                head = (head + 1) % buffer.length;
+                count--;
+                if (oldestStored) {
+                    // Stays in the list, read from the store from now on
+                    storedOnly++;
+                } else {
+                    nextRemove(storedOnly, oldest);
+                    if (store == null) {
+                        spill(oldest);
+                    }
+                }
+            }
+            int tail = (head + count) % buffer.length;
+            buffer[tail] = entry;
+            stored[tail] = toStore;
+            count++;
+            nextAdd(size() - 1, size());
+        } finally {
+            endChange();
+        }
+    }
+
+    @Override
+    public Entry get(int index) {
+        int size = size();
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        if (index < storedOnly) {
+            // Older than the ring buffer. The writer leaves the queue only after appending, so
+            // a message that is not queued is in the store
+            for (Pending p : pending) {
+                if (p.id == index) {
+                    return p.entry;
+                }
+            }
+            MessageStore.Record record = store.get(index);
+            return new Entry(record.getMessage(), record.isLocal(), record.isWarning(),
+                    record.isFailed());
+        }
+        return buffer[(head + index - storedOnly) % buffer.length];
+    }
+
+    @Override
+    public int size() {
+        return storedOnly + count;
+    }
+
+    /**
+     * @return Maximum number of messages kept in memory
+     */
+    public int getRetention() {
+        return buffer.length;
+    }
+
+    /**
+     * Hand a message to the store writer. If appending fails, the store is no longer used, see
+     * dropStore().
+     */
+    private void storeEntry(Entry entry) {
+        int flags = (entry.isLocal() ? MessageStore.LOCAL : 0)
+                | (entry.isWarning() ? MessageStore.WARNING : 0)
+                | (entry.isFailed() ? MessageStore.FAILED : 0);
+        pending.add(new Pending(nextId++, entry));
+        MessageStore target = store;
+        storeWriter.execute(() -> {
+            if (storeFailed) {
+                return;
+            }
+            try {
+                target.append(entry.getMessage(), flags);
+                pending.poll();
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Error writing message store, keeping history in memory: "
+                        + e.getMessage());
+                storeFailed = true;
+            }
+        });
+    }
+
+    /**
+     * Stop using the store after appending failed: the list shrinks to the messages in memory.
+     * Must be called inside a change.
+     */
+    private void dropStore() {
+        storeWriter.shutdown();
+        storeWriter = null;
+        store.close();
+        store = null;
+        if (storedOnly > 0) {
+            // The removed entries are not needed by the ListView, just their number
+            nextRemove(0, Collections.nCopies(storedOnly, null));
+            storedOnly = 0;
+        }
+        Arrays.fill(stored, false);
+        pending.clear();
+    }
+
+    /**
+     * Write a dropped message to the spill file
+     */
+    private void spill(Entry entry) {
+        if (spill == null) {
+            return;
+        }
+        TextMessage msg = entry.getMessage();
+        try {
+            spill.write((entry.isLocal() ? "sent" : msg.isPrivate() ? "private" : "public")
+                    + "\t" + escape(msg.getSender()) + "\t" + escape(msg.getText()));
+            spill.newLine();
+            spill.flush();
+        } catch (IOException e) {
+            System.out.println("Error writing history spill file: " + e.getMessage());
+            closeSpillFile();
+        }
+    }
+
+    /**
+     * A message waiting to be appended to the store
+     */
+    private static class Pending {
+        private final long id;
+        private final Entry entry;
+
+        Pending(long id, Entry entry) {
+            this.id = id;
+            this.entry = entry;
+        }
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,456 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A persistent, append-only log of chat messages kept in a directory of memory-mapped segment
+ * files. Every message gets an id: its number in the log, starting at 0. When a segment is
+ * full, the next one is started, so no file is ever rewritten.
+ *
+ * Two indexes are kept in memory and rebuilt from the log when the store is opened: the ids of
+ * the messages of every sender, and an inverted index from every word to the ids of the
+ * messages containing it. Searching a long history is then a lookup and a merge of sorted id
+ * lists instead of a scan. The messages themselves stay on disk (in the page cache) and are
+ * decoded only when they are read, so a GUI can page through the history without holding it.
+ * Messages read from the store are compact (see TextMessage).
+ *
+ * Record layout: record length (int, bytes after the length), timestamp (long), flags (byte),
+ * sender length (short), sender and text in UTF-8. A zero length marks the end of a segment.
+ *
+ * Thread-safe.
+ */
+public class MessageStore implements Closeable {
+    // Flags stored with a message, see append()
+    public static final int LOCAL = 1;
+    public static final int WARNING = 2;
+    public static final int FAILED = 4;
+    private static final int PRIVATE = 8;
+
+    private static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    // length, timestamp, flags, sender length
+    private static final int HEADER_SIZE = 4 + 8 + 1 + 2;
+
+    /**
+     * A message read from the store
+     */
+    public static class Record {
+        private final long id;
+        private final long timestamp;
+        private final int flags;
+        private final TextMessage message;
+
+        private Record(long id, long timestamp, int flags, TextMessage message) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.flags = flags;
+            this.message = message;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * @return When the message was stored, in milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public TextMessage getMessage() {
+            return message;
+        }
+
+        public boolean isLocal() {
+            return (flags & LOCAL) != 0;
+        }
+
+        public boolean isWarning() {
+            return (flags & WARNING) != 0;
+        }
+
+        public boolean isFailed() {
+            return (flags & FAILED) != 0;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    // Write position in the last segment
+    private int writePos = 0;
+    // Segment number in the high 32 bits, position in the low 32 bits, by message id
+    private long[] addresses = new long[1024];
+    private int count = 0;
+    private final Map<String, IdList> senderIndex = new HashMap<>();
+    private final Map<String, IdList> wordIndex = new HashMap<>();
+    private boolean closed = false;
+    // Decodes sender names that are not in the sender pool
+    private final LineCodec codec = new LineCodec();
+
+    /**
+     * Open a store with 4 MiB segments.
+     *
+     * @param directory Directory of the segment files, created if it does not exist
+     * @throws IOException When the segments can't be opened
+     */
+    public MessageStore(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Open a store. Messages already in the directory are loaded into the indexes.
+     *
+     * @param directory   Directory of the segment files, created if it does not exist
+     * @param segmentSize Size of new segment files in bytes
+     * @throws IOException When the segments can't be opened
+     */
+    public MessageStore(Path directory, int segmentSize) throws IOException {
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("segmentSize must be at least 1024");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            dir.forEach(files::add);
+        }
+        // The names are zero-padded, so sorting by name sorts by segment number
+        Collections.sort(files);
+        for (Path file : files) {
+            segments.add(map(file, 0));
+            load(segments.size() - 1);
+        }
+        if (segments.isEmpty()) {
+            startSegment();
+        }
+    }
+
+    /**
+     * Append a message. The timestamp is the current time.
+     *
+     * @param message The message
+     * @param flags   LOCAL, WARNING and FAILED, combined with |. Warnings are not added to the
+     *                word index
+     * @return Id of the message
+     * @throws IOException When a new segment can't be created
+     */
+    public synchronized long append(TextMessage message, int flags) throws IOException {
+        checkOpen();
+        byte[] sender = bytes(message.getSender());
+        byte[] text = bytes(message.getText());
+        if (sender.length > 0xFFFF) {
+            throw new IllegalArgumentException("Sender name too long");
+        }
+        int length = HEADER_SIZE + sender.length + text.length;
+        // Leave room for the end marker
+        if (length + 4 > segmentSize) {
+            throw new IllegalArgumentException("Message too large for the segment size");
+        }
+        MappedByteBuffer last = segments.get(segments.size() - 1);
+        if (writePos + length + 4 > last.capacity()) {
+            last.force();
+            startSegment();
+        }
+        ByteBuffer segment = segments.get(segments.size() - 1).duplicate();
+        // The length is written last: a record cut short by a crash still ends the segment
+        segment.position(writePos + 4);
+        segment.putLong(System.currentTimeMillis());
+        segment.put((byte) (flags & (LOCAL | WARNING | FAILED) | (message.isPrivate() ? PRIVATE : 0)));
+        segment.putShort((short) sender.length);
+        segment.put(sender);
+        segment.put(text);
+        segment.putInt(writePos, length - 4);
+        long id = addRecord(segments.size() - 1, writePos, message, flags);
+        writePos += length;
+        return id;
+    }
+
+    /**
+     * @return Number of messages in the store
+     */
+    public synchronized long size() {
+        return count;
+    }
+
+    /**
+     * @param id Id of the message
+     * @return The message
+     */
+    public synchronized Record get(long id) {
+        checkOpen();
+        if (id < 0 || id >= count) {
+            throw new IndexOutOfBoundsException("Id " + id + ", size " + count);
+        }
+        return read(id);
+    }
+
+    /**
+     * Read consecutive messages, for paging through the history.
+     *
+     * @param fromId Id of the first message
+     * @param max    Maximum number of messages
+     * @return The messages, oldest first
+     */
+    public synchronized List<Record> read(long fromId, int max) {
+        checkOpen();
+        List<Record> records = new ArrayList<>();
+        for (long id = Math.max(0, fromId); id < count && records.size() < max; id++) {
+            records.add(read(id));
+        }
+        return records;
+    }
+
+    /**
+     * Find the messages of a sender.
+     *
+     * @param sender Username of the sender
+     * @param max    Maximum number of messages
+     * @return The newest messages of the sender, newest first
+     */
+    public synchronized List<Record> findBySender(String sender, int max) {
+        checkOpen();
+        IdList ids = senderIndex.get(sender);
+        List<Record> records = new ArrayList<>();
+        if (ids != null) {
+            for (int i = ids.size - 1; i >= 0 && records.size() < max; i--) {
+                records.add(read(ids.ids[i]));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Find the messages containing all the words of a query. Words are compared ignoring case;
+     * punctuation is ignored.
+     *
+     * @param query One or more words
+     * @param max   Maximum number of messages
+     * @return The newest matching messages, newest first. Empty if the query has no words
+     */
+    public synchronized List<Record> search(String query, int max) {
+        checkOpen();
+        List<Record> records = new ArrayList<>();
+        Set<String> words = words(query);
+        if (words.isEmpty()) {
+            return records;
+        }
+        IdList[] lists = new IdList[words.size()];
+        int n = 0;
+        for (String word : words) {
+            IdList ids = wordIndex.get(word);
+            if (ids == null) {
+                return records;
+            }
+            lists[n++] = ids;
+        }
+        // Walk the shortest list backwards, newest first, and look the ids up in the others
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+        for (int i = lists[0].size - 1; i >= 0 && records.size() < max; i--) {
+            int id = lists[0].ids[i];
+            boolean inAll = true;
+            for (int l = 1; l < lists.length && inAll; l++) {
+                inAll = lists[l].contains(id);
+            }
+            if (inAll) {
+                records.add(read(id));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Write the changes of the current segment to the disk.
+     */
+    public synchronized void flush() {
+        if (!closed) {
+            segments.get(segments.size() - 1).force();
+        }
+    }
+
+    /**
+     * Write the changes to the disk and close the store. The mappings are released by the
+     * garbage collector.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            flush();
+            closed = true;
+            segments.clear();
+        }
+    }
+
+    /**
+     * Create the next segment file and make it the one written to
+     */
+    private void startSegment() throws IOException {
+        Path file = directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, segments.size(),
+                SEGMENT_SUFFIX));
+        segments.add(map(file, segmentSize));
+        writePos = 0;
+    }
+
+    /**
+     * Map a segment file. The mapping stays valid after the channel is closed.
+     *
+     * @param size Size of a new file, 0 to map an existing file with its own size
+     */
+    private static MappedByteBuffer map(Path file, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long length = size > 0 ? size : channel.size();
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        }
+    }
+
+    /**
+     * Add the records of a segment read from disk to the indexes. A record that does not fit
+     * its own length, for example one torn by a crash while it was written, ends the segment:
+     * it and everything after it are erased, so that appending can't leave parts of it behind.
+     */
+    private void load(int segmentNumber) {
+        MappedByteBuffer segment = segments.get(segmentNumber);
+        int pos = 0;
+        while (pos + HEADER_SIZE <= segment.capacity()) {
+            int length = segment.getInt(pos);
+            if (length == 0) {
+                // End of the segment
+                break;
+            }
+            if (!isValidRecord(segment, pos, length)) {
+                System.out.println("Message store: bad record at " + pos + " in segment "
+                        + segmentNumber + ", ignoring the rest of the segment");
+                for (int i = pos; i < segment.capacity(); i++) {
+                    segment.put(i, (byte) 0);
+                }
+                break;
+            }
+            Record record = decode(count, segmentNumber, pos);
+            addRecord(segmentNumber, pos, record.message, record.flags);
+            pos += 4 + length;
+        }
+        writePos = pos;
+    }
+
+    /**
+     * @return true if the record at the position has a length that holds its header and sender
+     * and stays within the segment
+     */
+    private static boolean isValidRecord(ByteBuffer segment, int pos, int length) {
+        if (length < HEADER_SIZE - 4 || length > segment.capacity() - pos - 4) {
+            return false;
+        }
+        int senderLength = segment.getShort(pos + HEADER_SIZE - 2) & 0xFFFF;
+        return senderLength <= length - (HEADER_SIZE - 4);
+    }
+
+    /**
+     * Remember where a record is and add it to the indexes
+     */
+    private long addRecord(int segmentNumber, int pos, TextMessage message, int flags) {
+        if (count == addresses.length) {
+            addresses = Arrays.copyOf(addresses, count * 2);
+        }
+        int id = count++;
+        addresses[id] = ((long) segmentNumber << 32) | pos;
+        senderIndex.computeIfAbsent(message.getSender(), s -> new IdList()).add(id);
+        if ((flags & WARNING) == 0) {
+            for (String word : words(message.getText())) {
+                wordIndex.computeIfAbsent(word, w -> new IdList()).add(id);
+            }
+        }
+        return id;
+    }
+
+    private Record read(long id) {
+        long address = addresses[(int) id];
+        return decode(id, (int) (address >>> 32), (int) address);
+    }
+
+    private Record decode(long id, int segmentNumber, int pos) {
+        ByteBuffer segment = segments.get(segmentNumber).duplicate();
+        segment.position(pos);
+        int length = segment.getInt();
+        long timestamp = segment.getLong();
+        int flags = segment.get();
+        int senderLength = segment.getShort() & 0xFFFF;
+        byte[] sender = new byte[senderLength];
+        segment.get(sender);
+        byte[] text = new byte[length - (HEADER_SIZE - 4) - senderLength];
+        segment.get(text);
+        // The text stays UTF-8 until it is shown
+        TextMessage message = TextMessage.compactUtf8(
+                SenderPool.intern(sender, 0, sender.length, codec), (flags & PRIVATE) != 0, text);
+        return new Record(id, timestamp, flags, message);
+    }
+
+    /**
+     * Split text into lower-case words of letters and digits
+     */
+    private static Set<String> words(String text) {
+        Set<String> words = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    private static byte[] bytes(String s) {
+        return s != null ? s.getBytes(StandardCharsets.UTF_8) : new byte[0];
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The message store is closed");
+        }
+    }
+
+    /**
+     * A growing, sorted list of message ids
+     */
+    private static class IdList {
+        private int[] ids = new int[4];
+        private int size = 0;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        boolean contains(int id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool of selector threads that drive non-blocking socket channels. Any number of
+ * TCPClient instances can share one event loop: every connection is assigned to one of the
+ * selector threads (round-robin) and all reading for that connection happens on that thread.
+ * This way hundreds of clients can run in one JVM on a handful of I/O threads instead of
+ * one blocked listen thread per connection.
+ */
+public class NioEventLoop implements Closeable {
+
+    private final Reactor[] reactors;
+    private final AtomicInteger nextReactor = new AtomicInteger();
+
+    /**
+     * Create an event loop with a single selector thread.
+     *
+     * @throws IOException When the selector can't be opened
+     */
+    public NioEventLoop() throws IOException {
+        this(1);
+    }
+
+    /**
+     * Create an event loop.
+     *
+     * @param threadCount Number of selector threads to use, at least one
+     * @throws IOException When a selector can't be opened
+     */
+    public NioEventLoop(int threadCount) throws IOException {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be at least 1");
+        }
+        reactors = new Reactor[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            reactors[i] = new Reactor(Selector.open());
+            Thread t = new Thread(reactors[i], "nio-event-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Attach a connected socket channel to the event loop. The channel is switched to
+     * non-blocking mode, incoming data is split into lines and handed to the handler
+     * on the selector thread.
+     *
+     * @param channel       A connected socket channel
+     * @param handler       Receiver of incoming lines and the close notification
+     * @param maxLineLength Maximum length of an incoming line in bytes. The connection is
+     *                      closed with an error when a longer line arrives
+     * @return The connection, used for writing and closing
+     * @throws IOException When the channel can't be switched to non-blocking mode
+     */
+    NioConnection register(SocketChannel channel, LineHandler handler, int maxLineLength)
+            throws IOException {
+        channel.configureBlocking(false);
+        Reactor reactor = reactors[Math.floorMod(nextReactor.getAndIncrement(), reactors.length)];
+        NioConnection connection = new NioConnection(channel, handler, reactor, maxLineLength);
+        reactor.execute(connection::register);
+        return connection;
+    }
+
+    /**
+     * Stop all selector threads and close every connection still attached to them.
+     */
+    @Override
+    public void close() {
+        for (Reactor reactor : reactors) {
+            reactor.shutdown();
+        }
+    }
+
+    /**
+     * Receives events for one non-blocking connection. All methods are called on the
+     * selector thread, so they should return quickly. A RuntimeException thrown by a handler
+     * is logged and does not affect the other connections of the selector thread.
+     */
+    interface LineHandler {
+        /**
+         * A complete line (without the line terminator) has been received. The buffer is reused
+         * for the following lines, so the bytes must be consumed before returning.
+         *
+         * @param buf    Buffer holding the line
+         * @param offset Index of the first byte of the line
+         * @param length Length of the line
+         */
+        void onLine(byte[] buf, int offset, int length);
+
+        /**
+         * The connection was closed, either by the remote end or because of an error
+         *
+         * @param cause The I/O error, or null when the remote end closed the stream
+         */
+        void onClosed(IOException cause);
+    }
+
+    /**
+     * One selector and the thread that runs it.
+     */
+    private static class Reactor implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        Reactor(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Run a task on the selector thread.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            System.out.println("Event loop task failed: " + e);
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (!key.isValid()) {
+                                connection.closeWithCause(null);
+                                continue;
+                            }
+                            if (key.isReadable()) {
+                                connection.handleRead();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.handleWrite();
+                            }
+                        } catch (RuntimeException e) {
+                            // A bug in one connection must not stop the others on this thread
+                            connection.closeWithCause(new IOException("Connection failed", e));
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Event loop stopped: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((NioConnection) key.attachment()).closeWithCause(null);
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // Nothing more we can do
+                }
+            }
+        }
+    }
+
+    /**
+     * A non-blocking connection attached to one reactor. Writes may be called from any thread,
+     * whatever the socket does not accept immediately is queued and written when the channel
+     * becomes writable again.
+     */
+    static class NioConnection {
+        private static final int INITIAL_BUFFER_SIZE = 8192;
+
+        private final SocketChannel channel;
+        private final LineHandler handler;
+        private final Reactor reactor;
+        private final int maxLineLength;
+        private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        private SelectionKey key;
+        private volatile boolean closed = false;
+
+        private NioConnection(SocketChannel channel, LineHandler handler, Reactor reactor,
+                              int maxLineLength) {
+            this.channel = channel;
+            this.handler = handler;
+            this.reactor = reactor;
+            this.maxLineLength = maxLineLength;
+        }
+
+        /**
+         * Register the channel with the selector. Runs on the selector thread.
+         */
+        private void register() {
+            try {
+                key = channel.register(reactor.selector, SelectionKey.OP_READ, this);
+                if (!writeQueue.isEmpty()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            } catch (ClosedChannelException e) {
+                closeWithCause(e);
+            }
+        }
+
+        /**
+         * Queue bytes for sending. Safe to call from any thread.
+         *
+         * @param data The bytes to send
+         * @return true if the data was accepted, false if the connection is closed
+         */
+        boolean write(ByteBuffer data) {
+            if (!channel.isOpen()) {
+                return false;
+            }
+            writeQueue.add(data);
+            reactor.execute(this::handleWrite);
+            return true;
+        }
+
+        /**
+         * Take the data that was queued but not completely written. Only meaningful after the
+         * connection is closed. Every buffer is returned from its start: a buffer the socket
+         * accepted part of is sent again in full.
+         *
+         * @return The unwritten buffers, oldest first
+         */
+        List<ByteBuffer> takeUnwritten() {
+            List<ByteBuffer> unwritten = new ArrayList<>();
+            ByteBuffer buffer;
+            while ((buffer = writeQueue.poll()) != null) {
+                buffer.rewind();
+                unwritten.add(buffer);
+            }
+            return unwritten;
+        }
+
+        /**
+         * @return true if the channel is still open
+         */
+        boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        /**
+         * Close the channel. Safe to call from any thread. The handler is not notified
+         * about closing initiated from our side.
+         */
+        void close() {
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // The channel is unusable anyway
+            }
+        }
+
+        /**
+         * Write as much of the queued data as the socket accepts. Runs on the selector thread.
+         */
+        private void handleWrite() {
+            if (key == null || closed) {
+                return;
+            }
+            try {
+                ByteBuffer buffer;
+                while ((buffer = writeQueue.peek()) != null) {
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        break;
+                    }
+                    writeQueue.poll();
+                }
+                if (key.isValid()) {
+                    int ops = writeQueue.isEmpty()
+                            ? SelectionKey.OP_READ
+                            : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+                    key.interestOps(ops);
+                }
+            } catch (IOException e) {
+                closeWithCause(e);
+            }
+        }
+
+        /**
+         * Read available bytes and hand every complete line to the handler. Runs on the
+         * selector thread.
+         */
+        private void handleRead() {
+            try {
+                int read = channel.read(readBuffer);
+                if (read < 0) {
+                    closeWithCause(null);
+                    return;
+                }
+                readBuffer.flip();
+                byte[] bytes = readBuffer.array();
+                int lineStart = readBuffer.position();
+                int limit = readBuffer.limit();
+                for (int i = lineStart; i < limit; i++) {
+                    if (bytes[i] == '\n') {
+                        int end = i;
+                        if (end > lineStart && bytes[end - 1] == '\r') {
+                            end--;
+                        }
+                        if (end - lineStart > maxLineLength) {
+                            throw new IOException("Line longer than " + maxLineLength + " bytes");
+                        }
+                        try {
+                            handler.onLine(bytes, lineStart, end - lineStart);
+                        } catch (RuntimeException e) {
+                            // Thrown by a listener called on this thread. Skip the line, like
+                            // the EventDispatcher does, and keep reading
+                            System.out.println("Line handler failed: " + e);
+                        }
+                        lineStart = i + 1;
+                    }
+                }
+                readBuffer.position(lineStart);
+                readBuffer.compact();
+                if (readBuffer.position() > maxLineLength + 1) {
+                    // One more byte is allowed for a \r before the \n
+                    throw new IOException("Line longer than " + maxLineLength + " bytes");
+                }
+                if (!readBuffer.hasRemaining()) {
+                    // A single line does not fit in the buffer, make room for it, but not more
+                    // than the longest line needs
+                    ByteBuffer bigger = ByteBuffer.allocate(
+                            Math.min(readBuffer.capacity() * 2, maxLineLength + 2));
+                    readBuffer.flip();
+                    bigger.put(readBuffer);
+                    readBuffer = bigger;
+                }
+            } catch (IOException e) {
+                closeWithCause(e);
+            }
+        }
+
+        /**
+         * Close the channel and notify the handler, unless the connection was already
+         * closed. Runs on the selector thread.
+         */
+        private void closeWithCause(IOException cause) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already failing, ignore
+            }
+            try {
+                handler.onClosed(cause);
+            } catch (RuntimeException e) {
+                System.out.println("Line handler failed: " + e);
+            }
+        }
+    }
+}
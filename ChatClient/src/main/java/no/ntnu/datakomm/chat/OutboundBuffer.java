@@ -0,0 +1,152 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * A user-space write buffer for outgoing commands. Commands are encoded and appended as
+ * newline-terminated lines, and the whole buffer is handed to the socket in one write, so a
+ * burst of commands costs one system call (and usually one TCP segment) instead of one each.
+ * Not thread-safe, the owner must synchronize.
+ */
+class OutboundBuffer {
+    private static final int INITIAL_SIZE = 1024;
+
+    private final LineCodec codec;
+    private byte[] bytes = new byte[INITIAL_SIZE];
+    private int size = 0;
+    private int lineCount = 0;
+
+    OutboundBuffer() {
+        this(new LineCodec());
+    }
+
+    /**
+     * @param codec Encodes the commands as UTF-8. Only used by this buffer
+     */
+    OutboundBuffer(LineCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Append one command, followed by a newline
+     *
+     * @param line The command, without the newline
+     */
+    void appendLine(String line) {
+        ensureCapacity(size + LineCodec.maxEncodedLength(line) + 1);
+        size = codec.encode(line, bytes, size);
+        bytes[size++] = '\n';
+        lineCount++;
+    }
+
+    /**
+     * @return Number of buffered bytes
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return Number of buffered commands
+     */
+    int lineCount() {
+        return lineCount;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Write the buffered bytes to a stream in a single write call and clear the buffer. When
+     * writing fails, the commands stay in the buffer, so that they can be saved for sending
+     * again; the server may have received some of them already.
+     *
+     * @param out The stream to write to
+     * @throws IOException When writing fails
+     */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, size);
+        out.flush();
+        clear();
+    }
+
+    /**
+     * Copy the buffered bytes into a new ByteBuffer (ready for reading). The buffer is not
+     * cleared.
+     *
+     * @return The buffered bytes
+     */
+    ByteBuffer copy() {
+        ByteBuffer copy = ByteBuffer.allocate(size);
+        copy.put(bytes, 0, size);
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * Put commands that were taken out of the buffer but not written back in front of the
+     * buffered commands.
+     *
+     * @param data Whole newline-terminated commands, from the position to the limit
+     */
+    void prepend(ByteBuffer data) {
+        int length = data.remaining();
+        if (length == 0) {
+            return;
+        }
+        ensureCapacity(size + length);
+        System.arraycopy(bytes, 0, bytes, length, size);
+        data.get(bytes, 0, length);
+        size += length;
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] == '\n') {
+                lineCount++;
+            }
+        }
+    }
+
+    /**
+     * Take the buffered commands accepted by a filter out of the buffer, in order, and clear
+     * the buffer. The other commands are discarded.
+     *
+     * @param filter Decides which commands to keep
+     * @return The commands accepted by the filter
+     */
+    List<String> removeLines(Predicate<String> filter) {
+        List<String> kept = new ArrayList<>();
+        int lineStart = 0;
+        for (int i = 0; i < size; i++) {
+            if (bytes[i] == '\n') {
+                String line = codec.decode(bytes, lineStart, i - lineStart);
+                if (filter.test(line)) {
+                    kept.add(line);
+                }
+                lineStart = i + 1;
+            }
+        }
+        clear();
+        return kept;
+    }
+
+    /**
+     * Discard the buffered commands
+     */
+    void clear() {
+        size = 0;
+        lineCount = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            byte[] bigger = new byte[Math.max(capacity, bytes.length * 2)];
+            System.arraycopy(bytes, 0, bigger, 0, size);
+            bytes = bigger;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Messages waiting to be sent until the client is connected and logged in: a bounded ring
+ * buffer of commands, oldest first. Optionally every change is appended to a journal file, so
+ * the waiting messages survive a restart of the client. The journal holds one record per line:
+ * "+command" when a command is added and "-n" when the n oldest commands are sent. It is
+ * compacted when it is opened and truncated whenever the queue becomes empty, so it does not
+ * grow while messages flow. The journal is written through to the operating system on every
+ * change, but not forced to the disk.
+ *
+ * Thread-safe.
+ */
+public class OutboundQueue implements Closeable {
+    private final String[] ring;
+    private int head = 0;
+    private int count = 0;
+    private final Path journalFile;
+    private BufferedWriter journal;
+
+    /**
+     * Create a queue kept in memory only.
+     *
+     * @param capacity Maximum number of waiting commands
+     */
+    public OutboundQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.ring = new String[capacity];
+        this.journalFile = null;
+    }
+
+    /**
+     * Create a queue backed by a journal file. Commands left in the file by an earlier run are
+     * loaded, up to the capacity; the newest ones are dropped if there are more.
+     *
+     * @param capacity    Maximum number of waiting commands
+     * @param journalFile The journal, created if it does not exist
+     * @throws IOException When the journal can't be read or written
+     */
+    public OutboundQueue(int capacity, Path journalFile) throws IOException {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.ring = new String[capacity];
+        this.journalFile = journalFile;
+        if (Files.exists(journalFile)) {
+            load(Files.readAllLines(journalFile, StandardCharsets.UTF_8));
+        }
+        compact();
+    }
+
+    /**
+     * Add a command at the end of the queue.
+     *
+     * @param command The command, without newline
+     * @return true if the command was added, false if the queue is full
+     * @throws IllegalStateException When the journal can't be written
+     */
+    public synchronized boolean offer(String command) {
+        if (count == ring.length) {
+            return false;
+        }
+        ring[(head + count) % ring.length] = command;
+        count++;
+        record("+" + command);
+        return true;
+    }
+
+    /**
+     * @param max Maximum number of commands to return
+     * @return The oldest commands, without removing them
+     */
+    public synchronized List<String> peek(int max) {
+        int n = Math.min(max, count);
+        List<String> commands = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            commands.add(ring[(head + i) % ring.length]);
+        }
+        return commands;
+    }
+
+    /**
+     * Remove the oldest commands, once they have been sent.
+     *
+     * @param n Number of commands to remove
+     * @throws IllegalStateException When the journal can't be written
+     */
+    public synchronized void remove(int n) {
+        n = Math.min(n, count);
+        if (n <= 0) {
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+        }
+        count -= n;
+        if (count == 0) {
+            head = 0;
+            truncateJournal();
+        } else {
+            record("-" + n);
+        }
+    }
+
+    /**
+     * Discard all waiting commands
+     */
+    public synchronized void clear() {
+        remove(count);
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    /**
+     * Close the journal. The waiting commands stay in it and are loaded by the next queue
+     * opened on the same file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * Replay the records of a journal
+     */
+    private void load(List<String> records) {
+        for (String record : records) {
+            if (record.startsWith("+")) {
+                if (count < ring.length) {
+                    ring[(head + count) % ring.length] = record.substring(1);
+                    count++;
+                }
+            } else if (record.startsWith("-")) {
+                try {
+                    int n = Math.min(Integer.parseInt(record.substring(1)), count);
+                    for (int i = 0; i < n; i++) {
+                        ring[head] = null;
+                        head = (head + 1) % ring.length;
+                    }
+                    count -= n;
+                } catch (NumberFormatException e) {
+                    // A record cut short by a crash, ignore it
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrite the journal with just the waiting commands and open it for appending.
+     */
+    private void compact() throws IOException {
+        Path tmp = journalFile.resolveSibling(journalFile.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (String command : peek(count)) {
+                out.write("+" + command);
+                out.newLine();
+            }
+        }
+        Files.move(tmp, journalFile, StandardCopyOption.REPLACE_EXISTING);
+        journal = Files.newBufferedWriter(journalFile, StandardCharsets.UTF_8,
+                StandardOpenOption.APPEND);
+    }
+
+    private void record(String record) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.write(record);
+            journal.newLine();
+            journal.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't write outbound queue journal", e);
+        }
+    }
+
+    private void truncateJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+            journal = Files.newBufferedWriter(journalFile, StandardCharsets.UTF_8,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't truncate outbound queue journal", e);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Futures of requests that are waiting for a response from the server. The server answers the
+ * requests of one connection in the order they were sent, so every response completes the
+ * oldest pending request of the matching kind. This lets callers pipeline many requests
+ * without waiting for a round-trip between them.
+ *
+ * A cmderr response does not say which request it answers. Since the server answers in order,
+ * it belongs to the oldest pending request of any kind, which is failed with it.
+ */
+class PendingRequests {
+
+    /**
+     * Request kinds that get a response of their own
+     */
+    enum Kind {
+        LOGIN,
+        USERS,
+        SUPPORTED
+    }
+
+    private final Map<Kind, ArrayDeque<Request>> pending = new EnumMap<>(Kind.class);
+    // Total number of pending requests, readable without locking
+    private volatile int outstanding = 0;
+    // Number given to the next request, orders the requests of different kinds
+    private long nextSequence = 0;
+
+    PendingRequests() {
+        for (Kind kind : Kind.values()) {
+            pending.put(kind, new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Register a request. Must happen before the request is sent, so that the response can't
+     * arrive first.
+     *
+     * @param kind   Kind of the request
+     * @param future The future to complete when the response arrives
+     */
+    @SuppressWarnings("unchecked")
+    synchronized <T> void add(Kind kind, CompletableFuture<T> future) {
+        pending.get(kind).addLast(new Request(nextSequence++, (CompletableFuture<Object>) future));
+        outstanding++;
+    }
+
+    /**
+     * Unregister a request that could not be sent. It is the newest request of its kind.
+     *
+     * @param kind   Kind of the request
+     * @param future The future that was registered
+     */
+    synchronized void removeLast(Kind kind, CompletableFuture<?> future) {
+        Request last = pending.get(kind).peekLast();
+        if (last != null && last.future == future) {
+            pending.get(kind).pollLast();
+            outstanding--;
+        }
+    }
+
+    /**
+     * Complete the oldest pending request of a kind. Does nothing if there is none, for example
+     * when the server sends a response nobody asked for.
+     *
+     * @param kind  Kind of the response
+     * @param value The result
+     */
+    void complete(Kind kind, Object value) {
+        Request request;
+        synchronized (this) {
+            request = pending.get(kind).pollFirst();
+            if (request == null) {
+                return;
+            }
+            outstanding--;
+        }
+        request.future.complete(value);
+    }
+
+    /**
+     * Fail the oldest pending request, whatever its kind. Does nothing if there is none.
+     *
+     * @param cause The reason
+     */
+    void failOldest(Throwable cause) {
+        Request oldest = null;
+        synchronized (this) {
+            ArrayDeque<Request> oldestQueue = null;
+            for (ArrayDeque<Request> queue : pending.values()) {
+                Request first = queue.peekFirst();
+                if (first != null && (oldest == null || first.sequence < oldest.sequence)) {
+                    oldest = first;
+                    oldestQueue = queue;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            oldestQueue.pollFirst();
+            outstanding--;
+        }
+        oldest.future.completeExceptionally(cause);
+    }
+
+    /**
+     * Fail all pending requests, for example when the connection is lost.
+     *
+     * @param cause The reason
+     */
+    void failAll(Throwable cause) {
+        ArrayDeque<Request> failed = new ArrayDeque<>();
+        synchronized (this) {
+            for (ArrayDeque<Request> queue : pending.values()) {
+                failed.addAll(queue);
+                queue.clear();
+            }
+            outstanding = 0;
+        }
+        for (Request request : failed) {
+            request.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * @return true if no request is waiting for a response
+     */
+    boolean isEmpty() {
+        return outstanding == 0;
+    }
+
+    /**
+     * @return Number of requests waiting for a response
+     */
+    int size() {
+        return outstanding;
+    }
+
+    /**
+     * A registered request and its place in the order of all requests
+     */
+    private static final class Request {
+        final long sequence;
+        final CompletableFuture<Object> future;
+
+        Request(long sequence, CompletableFuture<Object> future) {
+            this.sequence = sequence;
+            this.future = future;
+        }
+    }
+}
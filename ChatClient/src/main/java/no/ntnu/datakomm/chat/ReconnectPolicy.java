@@ -0,0 +1,72 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides how long TCPClient waits before each attempt to reconnect after the connection was
+ * lost: exponential backoff with random jitter. The jitter spreads the reconnects of many
+ * clients that lost their connection at the same moment (a server restart), so they don't all
+ * hit the server at once.
+ */
+public class ReconnectPolicy {
+    private final long initialDelay;
+    private final long maxDelay;
+    private final double multiplier;
+    private final double jitter;
+    private final int maxAttempts;
+
+    /**
+     * A policy starting at 500 ms, doubling up to 30 s, with 50% jitter and no attempt limit.
+     */
+    public ReconnectPolicy() {
+        this(500, 30000, 2.0, 0.5, 0);
+    }
+
+    /**
+     * @param initialDelayMillis Delay before the first attempt
+     * @param maxDelayMillis     The delay never grows beyond this
+     * @param multiplier         The delay is multiplied by this after every failed attempt
+     * @param jitter             Fraction of the delay that is random, between 0 (none) and 1
+     *                           (anything between 0 and the delay)
+     * @param maxAttempts        Give up after this many failed attempts, 0 for no limit
+     */
+    public ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, double multiplier,
+                           double jitter, int maxAttempts) {
+        if (initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException("Need 0 <= initialDelayMillis <= maxDelayMillis");
+        }
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("multiplier must be at least 1");
+        }
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1");
+        }
+        this.initialDelay = initialDelayMillis;
+        this.maxDelay = maxDelayMillis;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.maxAttempts = Math.max(0, maxAttempts);
+    }
+
+    /**
+     * @param attempt Number of the attempt, starting at 1
+     * @return Milliseconds to wait before the attempt
+     */
+    public long delayBeforeAttempt(int attempt) {
+        double delay = initialDelay * Math.pow(multiplier, Math.max(0, attempt - 1));
+        long capped = (long) Math.min(delay, maxDelay);
+        long randomPart = (long) (capped * jitter);
+        if (randomPart == 0) {
+            return capped;
+        }
+        return capped - randomPart + ThreadLocalRandom.current().nextLong(randomPart + 1);
+    }
+
+    /**
+     * @param attempt Number of the attempt, starting at 1
+     * @return true if the attempt may be made, false if the client must give up
+     */
+    public boolean mayAttempt(int attempt) {
+        return maxAttempts == 0 || attempt <= maxAttempts;
+    }
+}
@@ -0,0 +1,84 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Arrays;
+
+/**
+ * A bounded intern pool for the sender names of messages. A chat has few senders and many
+ * messages, so most messages can share one String per sender instead of carrying a copy each.
+ *
+ * The pool is a direct-mapped cache: every name has exactly one slot, chosen by its hash, and a
+ * new name simply replaces whatever was in its slot. Memory use is fixed, lookups never lock,
+ * and a name that is replaced just costs one more String the next time. Slots hold immutable
+ * entries, so threads racing on a slot at worst replace each other's entry.
+ */
+final class SenderPool {
+    // Number of slots, a power of two (chat.senderPoolSize system property, rounded up)
+    private static final int SIZE =
+            Integer.highestOneBit(Math.max(1, Integer.getInteger("chat.senderPoolSize", 1024) - 1)) << 1;
+
+    private static final String[] STRINGS = new String[SIZE];
+    private static final Entry[] ENTRIES = new Entry[SIZE];
+
+    private SenderPool() {
+    }
+
+    /**
+     * @param name A sender name
+     * @return An equal String from the pool, or the name itself after adding it to the pool
+     */
+    static String intern(String name) {
+        if (name == null) {
+            return null;
+        }
+        int slot = spread(name.hashCode()) & (SIZE - 1);
+        String pooled = STRINGS[slot];
+        if (pooled == name || name.equals(pooled)) {
+            return pooled;
+        }
+        STRINGS[slot] = name;
+        return name;
+    }
+
+    /**
+     * Look up a sender name by its UTF-8 bytes, without creating a String when the name is in
+     * the pool.
+     *
+     * @param buf    Buffer holding the name
+     * @param offset Index of the first byte
+     * @param length Number of bytes
+     * @param codec  Decodes the name when it is not in the pool
+     * @return The name
+     */
+    static String intern(byte[] buf, int offset, int length, LineCodec codec) {
+        int hash = 1;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            hash = 31 * hash + buf[i];
+        }
+        int slot = spread(hash) & (SIZE - 1);
+        Entry entry = ENTRIES[slot];
+        if (entry != null && Arrays.equals(entry.utf8, 0, entry.utf8.length,
+                buf, offset, offset + length)) {
+            return entry.name;
+        }
+        String name = intern(codec.decode(buf, offset, length));
+        ENTRIES[slot] = new Entry(Arrays.copyOfRange(buf, offset, offset + length), name);
+        return name;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * A name and its bytes
+     */
+    private static final class Entry {
+        final byte[] utf8;
+        final String name;
+
+        Entry(byte[] utf8, String name) {
+            this.utf8 = utf8;
+            this.name = name;
+        }
+    }
+}
@@ -2,18 +2,120 @@ package no.ntnu.datakomm.chat;
 
 import java.io.*;
 import java.net.*;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class TCPClient {
-    private PrintWriter toServer;
-    private BufferedReader fromServer;
-    private Socket connection;
+    // Flushes batched commands when their maximum delay has expired. Shared by all clients
+    private static final ScheduledExecutorService FLUSH_TIMER = Executors.newSingleThreadScheduledExecutor(
+            ChatThreads.platformFactory("tcp-client-flush-timer", true));
+    // How long the reconnect supervisor waits for the server to answer the login again
+    private static final long RESTORE_LOGIN_TIMEOUT = 10000;
+    // Number of messages kept while reconnecting when no outbound queue is set
+    private static final int DEFAULT_UNSENT_CAPACITY = 1000;
+    // Number of queued messages written together when the queue is drained
+    private static final int DRAIN_BATCH = 64;
+    // How long login/users/help requests wait for their response, unless configured otherwise
+    // (chat.requestTimeout system property, 0 means no timeout)
+    private static final long DEFAULT_REQUEST_TIMEOUT = Long.getLong("chat.requestTimeout", 30000);
+
+    private OutputStream toServer;
+    private LineReader fromServer;
+    // Volatile because the listen thread checks it to find out that its socket was replaced
+    private volatile Socket connection;
+
+    // Decodes incoming lines in place. Only used by the thread that reads from the server
+    private final CommandDecoder decoder = new CommandDecoder();
+
+    // Longest line in bytes the client sends or accepts. A longer incoming line closes the
+    // connection
+    private volatile int maxLineLength = LineCodec.DEFAULT_MAX_LINE_LENGTH;
+
+    // When set, the client uses a non-blocking channel driven by this shared event loop
+    // instead of a blocking socket with its own listen thread
+    private final NioEventLoop eventLoop;
+    private NioEventLoop.NioConnection channelConnection;
 
     // Hint: if you want to store a message for the last error, store it here
     private String lastError = null;
 
-    private final List<ChatListener> listeners = new LinkedList<>();
+    // Copy-on-write, so the listen thread can iterate it while listeners are added or removed
+    private final ListenerRegistry listeners = new ListenerRegistry();
+
+    // When set, listener events are delivered on the dispatcher thread
+    private volatile EventDispatcher dispatcher;
+
+    // Creates the listen thread and other background threads. Virtual threads when available
+    private volatile ThreadFactory threadFactory = ChatThreads.defaultFactory("tcp-client");
+
+    // Outgoing commands are collected here and written in one go. All the fields below are
+    // guarded by the outbound buffer itself
+    private final OutboundBuffer outbound = new OutboundBuffer();
+    // Flush when this many bytes are buffered. 0 means no batching: flush after every command
+    private int flushThreshold = 0;
+    // Flush at the latest this long after the first buffered command. 0 means no timer
+    private long maxFlushDelay = 0;
+    private boolean flushScheduled = false;
+
+    // Futures of login/users/help requests waiting for their response
+    private final PendingRequests pending = new PendingRequests();
+
+    // The users logged in on the server, as far as we know
+    private final UserPresence presence = new UserPresence();
+
+    // Counters and timers, updated on the hot paths
+    private final ClientMetrics metrics = new ClientMetrics(
+            this::outboundQueuedBytes, pending::size, this::dispatcherQueued);
+
+    // Decides the delays between reconnect attempts. Null means the client doesn't reconnect
+    private volatile ReconnectPolicy reconnectPolicy = null;
+    // When true, messages sent while reconnecting are kept and sent once the session is restored
+    private volatile boolean replayUnsent = false;
+    // The server given to connect(), used again when reconnecting
+    private String host;
+    private int port;
+    // Username of the last successful login, null when not logged in. Used to log in again
+    // after reconnecting
+    private volatile String sessionUsername = null;
+    // The thread trying to reconnect, null when not reconnecting. Written while holding the
+    // client lock
+    private volatile Thread reconnectThread = null;
+    // Messages waiting to be sent until the client is connected and logged in. Modified while
+    // holding the outbound lock
+    private volatile OutboundQueue unsent = new OutboundQueue(DEFAULT_UNSENT_CAPACITY);
+    // When true, messages are queued whenever the session is not open, not just while reconnecting
+    private volatile boolean queueWhileOffline = false;
+    // When true, received messages keep their text as UTF-8 bytes, see TextMessage
+    private volatile boolean compactMessages = false;
+    // Futures of requests fail after this many milliseconds without a response, 0 means never
+    private volatile long requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+
+    /**
+     * Create a client using a blocking socket. Incoming commands are read on the thread started
+     * by startListenThread().
+     */
+    public TCPClient() {
+        this(null);
+    }
+
+    /**
+     * Create a client using a non-blocking socket channel. Incoming commands are read by the
+     * given event loop, which can be shared by many clients; startListenThread() is not needed.
+     *
+     * @param eventLoop The event loop that drives the connection, or null for a blocking socket
+     */
+    public TCPClient(NioEventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+    }
 
     /**
      * Connect to a chat server.
@@ -26,20 +128,65 @@ public class TCPClient {
         // TODO Step 1: implement this method
         // Hint: Remember to process all exceptions and return false on error
         // Hint: Remember to set up all the necessary input/output stream variables
+        // A new connection starts a new session
+        stopReconnecting();
+        this.sessionUsername = null;
+        synchronized (outbound) {
+            saveUnsent(queueWhileOffline);
+        }
+        this.host = host;
+        this.port = port;
+        return openConnection(null);
+    }
+
+    /**
+     * Open the connection to the server given to connect().
+     *
+     * @param reconnector The reconnect thread opening the connection, or null. When given, the
+     *                    new connection is only used if that thread is still the one reconnecting
+     * @return True on success, false otherwise
+     */
+    private boolean openConnection(Thread reconnector) {
         boolean sucess = false;
         try {
-            this.connection = new Socket(host, port);
-
-            this.toServer = new PrintWriter(this.connection.getOutputStream(), true);
-            this.fromServer = new BufferedReader(new InputStreamReader(this.connection.getInputStream()));
+            if (this.eventLoop != null) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+                synchronized (this) {
+                    if (reconnector != null && reconnectThread != reconnector) {
+                        channel.close();
+                        return false;
+                    }
+                    this.channelConnection = this.eventLoop.register(channel, new ChannelHandler(),
+                            maxLineLength);
+                }
+            } else {
+                Socket socket = new Socket(host, port);
+                synchronized (this) {
+                    if (reconnector != null && reconnectThread != reconnector) {
+                        socket.close();
+                        return false;
+                    }
+                    this.toServer = socket.getOutputStream();
+                    this.fromServer = new LineReader(socket.getInputStream(), maxLineLength);
+                    this.connection = socket;
+                }
+            }
 
             sucess = true;
+            metrics.connected(reconnector != null);
         } catch (IOException e) {
             this.lastError = "Error connecting to server.";
         }
         return sucess;
     }
 
+    /**
+     * @return true if this client uses a non-blocking channel on a shared event loop
+     */
+    public boolean isNonBlocking() {
+        return eventLoop != null;
+    }
+
     /**
      * Close the socket. This method must be synchronized, because several
      * threads may try to call it. For example: When "Disconnect" button is
@@ -52,7 +199,17 @@ public class TCPClient {
     public synchronized void disconnect() {
         // TODO Step 4: implement this method
         // Hint: remember to check if connection is active
+        boolean wasReconnecting = stopReconnecting();
+        this.sessionUsername = null;
         if (isConnectionActive()){
+            // Don't lose commands still waiting in the batch buffer
+            flush();
+            if (this.channelConnection != null) {
+                this.channelConnection.close();
+                this.channelConnection = null;
+                onDisconnect();
+                return;
+            }
             try {
                 this.connection.close();
                 this.connection = null;
@@ -60,7 +217,15 @@ public class TCPClient {
             } catch (IOException e){
                 this.connection = null;
                 this.lastError = "Error disconnecting from the server.";
+                metrics.disconnected();
+                pending.failAll(new IOException(this.lastError));
             }
+        } else if (wasReconnecting) {
+            onDisconnect();
+        }
+        // Commands a failed write left behind must not go out on the next connection
+        synchronized (outbound) {
+            saveUnsent(queueWhileOffline);
         }
 
     }
@@ -69,11 +234,12 @@ public class TCPClient {
      * @return true if the connection is active (opened), false if not.
      */
     public boolean isConnectionActive() {
-        return connection != null;
+        return connection != null || channelConnection != null;
     }
 
     /**
-     * Send a command to server.
+     * Send a command to server. While reconnecting with replay turned on, or while offline with
+     * an outbound queue, the command is queued until the session is open.
      *
      * @param cmd A command. It should include the command word and optional attributes, according to the protocol.
      * @return true on success, false otherwise
@@ -81,14 +247,44 @@ public class TCPClient {
     private boolean sendCommand(String cmd) {
         // TODO Step 2: Implement this method
         // Hint: Remember to check if connection is active
+        if (isHoldingMessages() && !cmd.isBlank()) {
+            if (!LineCodec.fits(cmd, maxLineLength)) {
+                this.lastError = "Command is too long.";
+                return false;
+            }
+            synchronized (outbound) {
+                if (!unsent.offer(cmd)) {
+                    this.lastError = "Outbound queue is full.";
+                    return false;
+                }
+                metrics.commandQueued(cmd);
+            }
+            drainIfSessionOpen();
+            return true;
+        }
+        return queueCommand(cmd);
+    }
+
+    /**
+     * Buffer a command for the current connection and write it if it is due.
+     *
+     * @param cmd The command to send
+     * @return true on success, false otherwise
+     */
+    private boolean queueCommand(String cmd) {
         boolean success = false;
 
         if (isConnectionActive()){
             if (cmd.isBlank()){
                 this.lastError = "Command was null or empty.";
+            } else if (!LineCodec.fits(cmd, maxLineLength)) {
+                this.lastError = "Command is too long.";
             } else {
-                this.toServer.println(cmd);
-                success = true;
+                synchronized (outbound) {
+                    outbound.appendLine(cmd);
+                    metrics.commandQueued(cmd);
+                    success = flushIfDue();
+                }
             }
         } else {
             this.lastError = "Cannot send msg as client is not connected to a server.";
@@ -96,6 +292,141 @@ public class TCPClient {
         return success;
     }
 
+    /**
+     * Turn on batched sending. Commands are then collected in a buffer and written to the
+     * socket together: when the buffer reaches the size threshold, when the oldest buffered
+     * command has waited maxDelayMillis, or when flush() is called. In batched mode the send
+     * methods return true once the command is buffered; an error while writing the batch
+     * later is reported through getLastError().
+     *
+     * @param flushThreshold Number of buffered bytes that triggers a write. 0 turns batching off
+     * @param maxDelayMillis Maximum time a command may wait in the buffer. 0 means it waits
+     *                       until the threshold is reached or flush() is called
+     */
+    public void setBatching(int flushThreshold, long maxDelayMillis) {
+        synchronized (outbound) {
+            this.flushThreshold = Math.max(0, flushThreshold);
+            this.maxFlushDelay = Math.max(0, maxDelayMillis);
+        }
+        if (flushThreshold <= 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Set the longest line, in bytes without the newline, the client sends or accepts. Sending
+     * a longer command fails, and a longer line from the server closes the connection, so a
+     * broken or hostile server can't make the client buffer without limit. Applies to
+     * connections opened afterwards. The default is 64 KiB, or the chat.maxLineLength system
+     * property.
+     *
+     * @param maxLineLength Maximum line length in bytes
+     */
+    public void setMaxLineLength(int maxLineLength) {
+        if (maxLineLength < 1) {
+            throw new IllegalArgumentException("maxLineLength must be at least 1");
+        }
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Choose whether received messages are compact: their text is kept as UTF-8 bytes and
+     * decoded when read. Saves memory for clients that keep many messages, at the cost of a
+     * decode on every TextMessage.getText() call.
+     *
+     * @param compactMessages When true, received messages are compact
+     */
+    public void setCompactMessages(boolean compactMessages) {
+        this.compactMessages = compactMessages;
+    }
+
+    /**
+     * Set how long the futures of login, users and help requests wait for their response before
+     * they fail with a TimeoutException. A response arriving later is still matched to its
+     * request, so the responses of later requests are not mixed up. The default is 30 seconds,
+     * or the chat.requestTimeout system property.
+     *
+     * @param timeoutMillis Timeout in milliseconds, 0 for no timeout
+     */
+    public void setRequestTimeout(long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("timeoutMillis must not be negative");
+        }
+        this.requestTimeout = timeoutMillis;
+    }
+
+    /**
+     * Write all buffered commands to the server now.
+     *
+     * @return true on success (or if there was nothing to write), false on error
+     */
+    public boolean flush() {
+        synchronized (outbound) {
+            return writeOutbound();
+        }
+    }
+
+    /**
+     * Write the buffer if batching is off or the size threshold is reached, otherwise make sure
+     * the flush timer is running. Must be called while holding the outbound lock.
+     *
+     * @return true on success, false if writing failed
+     */
+    private boolean flushIfDue() {
+        if (flushThreshold <= 0 || outbound.size() >= flushThreshold) {
+            return writeOutbound();
+        }
+        if (maxFlushDelay > 0 && !flushScheduled) {
+            flushScheduled = true;
+            FLUSH_TIMER.schedule(() -> {
+                synchronized (outbound) {
+                    flushScheduled = false;
+                    writeOutbound();
+                }
+            }, maxFlushDelay, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * Hand all buffered commands to the socket in a single write. Must be called while holding
+     * the outbound lock. When writing fails, the commands stay in the buffer until the lost
+     * connection is handled, which saves the messages among them in the outbound queue.
+     *
+     * @return true on success (or if there was nothing to write), false on error
+     */
+    private boolean writeOutbound() {
+        if (outbound.isEmpty()) {
+            return true;
+        }
+        boolean success = false;
+        int bytes = outbound.size();
+        int lines = outbound.lineCount();
+        long start = System.nanoTime();
+        NioEventLoop.NioConnection channel = this.channelConnection;
+        OutputStream out = this.toServer;
+        if (channel != null) {
+            success = channel.write(outbound.copy());
+            if (success) {
+                outbound.clear();
+            } else {
+                this.lastError = "Cannot send msg as the connection is closed.";
+            }
+        } else if (out != null && this.connection != null) {
+            try {
+                outbound.writeTo(out);
+                success = true;
+            } catch (IOException e) {
+                this.lastError = "Error sending command to server.";
+            }
+        } else {
+            this.lastError = "Cannot send msg as client is not connected to a server.";
+        }
+        if (success) {
+            metrics.written(bytes, lines, System.nanoTime() - start);
+        }
+        return success;
+    }
 
     /**
      * Send a public message to all the recipients.
@@ -116,6 +447,49 @@ public class TCPClient {
         return messageSent;
     }
 
+    /**
+     * Send several public messages. All the messages are written to the socket together, in as
+     * few writes as possible, no matter what the batching settings are.
+     *
+     * @param messages Messages to send
+     * @return true if all the messages were sent, false if any of them was blank or on error
+     */
+    public boolean sendPublicMessages(Collection<String> messages) {
+        boolean holding = isHoldingMessages();
+        if (!holding && !isConnectionActive()) {
+            this.lastError = "Cannot send msg as client is not connected to a server.";
+            return false;
+        }
+        boolean allValid = true;
+        synchronized (outbound) {
+            for (String message : messages) {
+                if (message.isBlank()) {
+                    this.lastError = "Command was null or empty.";
+                    allValid = false;
+                    continue;
+                }
+                String cmd = "msg " + message.trim();
+                if (!LineCodec.fits(cmd, maxLineLength)) {
+                    this.lastError = "Command is too long.";
+                    allValid = false;
+                } else if (!holding) {
+                    outbound.appendLine(cmd);
+                    metrics.commandQueued(cmd);
+                } else if (unsent.offer(cmd)) {
+                    metrics.commandQueued(cmd);
+                } else {
+                    this.lastError = "Outbound queue is full.";
+                    allValid = false;
+                }
+            }
+            if (holding) {
+                drainIfSessionOpen();
+                return allValid;
+            }
+            return writeOutbound() && allValid;
+        }
+    }
+
     /**
      * Send a login request to the chat server.
      *
@@ -124,11 +498,33 @@ public class TCPClient {
     public void tryLogin(String username) {
         // TODO Step 3: implement this method
         // Hint: Reuse sendCommand() method
+        loginAsync(username);
+    }
+
+    /**
+     * Send a login request to the chat server. The listeners are notified as usual, in addition
+     * the returned future completes when the server has answered this request.
+     *
+     * @param username Username to use
+     * @return Future result of the login. Fails if the request can't be sent, the connection
+     * is lost before the response arrives, the server answers with cmderr or the request times
+     * out (see setRequestTimeout())
+     */
+    public CompletableFuture<LoginResult> loginAsync(String username) {
         if (username.isBlank()){
             this.lastError = "Command was null or empty.";
-        } else {
-            sendCommand("login " + username.trim());
+            return CompletableFuture.failedFuture(new IllegalArgumentException(this.lastError));
         }
+        String name = username.trim();
+        CompletableFuture<LoginResult> result = sendRequest(PendingRequests.Kind.LOGIN, "login " + name);
+        // Remember the name, to log in again after reconnecting
+        result.thenAccept(login -> {
+            if (login.isSuccess()) {
+                this.sessionUsername = name;
+                drainIfSessionOpen();
+            }
+        });
+        return result;
     }
 
     /**
@@ -139,7 +535,25 @@ public class TCPClient {
         // TODO Step 5: implement this method
         // Hint: Use Wireshark and the provided chat client reference app to find out what commands the
         // client and server exchange for user listing.
-        sendCommand("users");
+        usersAsync();
+    }
+
+    /**
+     * Send a request for latest user list to the server. The listeners are notified as usual,
+     * in addition the returned future completes with the user list of this request.
+     *
+     * @return Future list of currently connected users. Fails like loginAsync() does
+     */
+    public CompletableFuture<List<String>> usersAsync() {
+        return sendRequest(PendingRequests.Kind.USERS, "users");
+    }
+
+    /**
+     * @return The users logged in on the server, updated from user lists and join/leave
+     * notifications
+     */
+    public UserPresence getUserPresence() {
+        return presence;
     }
 
     /**
@@ -172,28 +586,95 @@ public class TCPClient {
     public void askSupportedCommands() {
         // TODO Step 8: Implement this method
         // Hint: Reuse sendCommand() method
-        sendCommand("help");
+        supportedCommandsAsync();
+    }
+
+    /**
+     * Send a request for the list of commands that server supports. The listeners are notified
+     * as usual, in addition the returned future completes with the commands.
+     *
+     * @return Future list of supported commands. Fails like loginAsync() does
+     */
+    public CompletableFuture<List<String>> supportedCommandsAsync() {
+        return sendRequest(PendingRequests.Kind.SUPPORTED, "help");
+    }
+
+    /**
+     * Register a pending request and send its command. Registering and buffering happen under
+     * the same lock, so the order of the pending requests is the order on the wire.
+     *
+     * @param kind Kind of the request, decides which response completes it
+     * @param cmd  The command to send
+     * @return Future completed with the response. Fails when the server answers with cmderr,
+     * or on timeout
+     */
+    private <T> CompletableFuture<T> sendRequest(PendingRequests.Kind kind, String cmd) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        synchronized (outbound) {
+            pending.add(kind, future);
+            // Requests are never held while reconnecting, their responses would not match
+            if (!queueCommand(cmd)) {
+                pending.removeLast(kind, future);
+                future.completeExceptionally(new IOException(getLastError()));
+                return future;
+            }
+        }
+        long timeout = this.requestTimeout;
+        if (timeout > 0) {
+            // Only the future times out: the request stays pending, so that a late response
+            // is consumed by it and not by the next request of its kind
+            future.orTimeout(timeout, TimeUnit.MILLISECONDS);
+        }
+        return future;
     }
 
 
     /**
-     * Wait for chat server's response
+     * Wait for chat server's response. The received line is left in the buffer of the reader.
      *
-     * @return one line of text (one command) received from the server
+     * @param socket The socket the reader belongs to
+     * @param reader Reader of the socket
+     * @return length of the line of text (one command) received from the server, -1 on error
      */
-    private String waitServerResponse() {
+    private int waitServerResponse(Socket socket, LineReader reader) {
         // TODO Step 3: Implement this method
         // TODO Step 4: If you get I/O Exception or null from the stream, it means that something has gone wrong
         // with the stream and hence the socket. Probably a good idea to close the socket in that case.
-        String serverResponse = null;
+        int length = -1;
         try {
-            serverResponse = this.fromServer.readLine().trim();
+            length = reader.readLine();
+            if (length < 0) {
+                connectionLost(socket, "Connection closed by the server.");
+            }
         } catch (IOException e){
-            disconnect();
-            this.lastError = "Error receiving message from server.";
+            connectionLost(socket, "Error receiving message from server.");
         }
 
-        return serverResponse;
+        return length;
+    }
+
+    /**
+     * Called by the listen thread when reading from its socket failed. Does nothing if the
+     * socket was closed on our side, or has already been replaced by a new connection.
+     *
+     * @param socket The socket that failed
+     * @param error  The reason, stored as the last error
+     */
+    private void connectionLost(Socket socket, String error) {
+        synchronized (this) {
+            if (socket != this.connection) {
+                return;
+            }
+            this.connection = null;
+            this.toServer = null;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+        this.lastError = error;
+        onConnectionLost();
     }
 
     /**
@@ -211,81 +692,456 @@ public class TCPClient {
 
     /**
      * Start listening for incoming commands from the server in a new CPU thread.
+     * In non-blocking mode the event loop already reads incoming commands, so no thread is started.
      */
     public void startListenThread() {
+        if (isNonBlocking()) {
+            return;
+        }
         // Call parseIncomingCommands() in the new thread.
-        Thread t = new Thread(() -> {
+        Thread t = threadFactory.newThread(() -> {
             parseIncomingCommands();
         });
         t.start();
     }
 
+    /**
+     * Set the factory used for the listen thread. By default virtual threads are used on
+     * JDK 21 and newer, platform threads otherwise.
+     *
+     * @param threadFactory The factory to use for new threads
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        if (threadFactory == null) {
+            throw new IllegalArgumentException("threadFactory must not be null");
+        }
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * @return The factory used for the listen thread. Front-ends can use it for their own
+     * background work, so that all the threads of a client are of the same kind
+     */
+    public ThreadFactory getThreadFactory() {
+        return threadFactory;
+    }
+
     /**
      * Read incoming messages one by one, generate events for the listeners. A loop that runs until
      * the connection is closed.
      */
     private void parseIncomingCommands() {
-        while (isConnectionActive()) {
+        // Stick to the connection open when the thread started. After a reconnect the new
+        // connection gets its own listen thread
+        Socket socket = this.connection;
+        LineReader reader = this.fromServer;
+        while (socket != null && socket == this.connection) {
             // TODO Step 3: Implement this method
             // Hint: Reuse waitServerResponse() method
             // Hint: Have a switch-case (or other way) to check what type of response is received from the server
             // and act on it.
             // Hint: In Step 3 you need to handle only login-related responses.
             // Hint: In Step 3 reuse onLoginResult() method
-            String serverResponse = waitServerResponse();
-            if (serverResponse != null){
-                String[] commandAndArgument = serverResponse.split(" ", 2);
-                String command;
-                String argument = "";
-                if (commandAndArgument.length == 2) {
-                    command = commandAndArgument[0].trim();
-                    argument = commandAndArgument[1].trim();
-                } else {
-                    command = commandAndArgument[0];
+            int length = waitServerResponse(socket, reader);
+            if (length >= 0){
+                handleServerResponse(reader.buffer(), reader.lineStart(), length);
+            }
+        }
+    }
+
+    /**
+     * Parse one line received from the server and notify the listeners about it. The fields of
+     * the command are only turned into Strings when there is a listener to receive them.
+     * Package-private so that the benchmarks can measure it without a server.
+     *
+     * @param buf    Buffer holding one line (one command) received from the server
+     * @param offset Index of the first byte of the line
+     * @param length Length of the line
+     */
+    void handleServerResponse(byte[] buf, int offset, int length) {
+        long start = System.nanoTime();
+        CommandDecoder.Command command = decoder.decode(buf, offset, length);
+        metrics.lineReceived(command, length, System.nanoTime() - start);
+        boolean updatesPresence = command == CommandDecoder.Command.USERS
+                || command == CommandDecoder.Command.JOINED
+                || command == CommandDecoder.Command.LEFT;
+        if (listeners.isEmpty() && pending.isEmpty() && !updatesPresence) {
+            return;
+        }
+        switch (command) {
+            case LOGINOK:
+                onLoginResult(true, null);
+                break;
+
+            case LOGINERR:
+                onLoginResult(false, decoder.argument());
+                break;
+
+            // TODO Step 5: update this method, handle user-list response from the server
+            //Hint: In Step 5 reuse onUserList() method
+
+            case USERS:
+                onUsersList(decoder.words());
+                break;
+
+            // TODO Step 7: add support for incoming chat messages from other users (types: msg, privmsg)
+            // TODO Step 7: add support for incoming message errors (type: msgerr)
+            // TODO Step 7: add support for incoming command errors (type: cmderr)
+            // Hint for Step 7: call corresponding onXXX() methods which will notify all the listeners
+
+            case MSG, PRIVMSG:
+                boolean priv = command == CommandDecoder.Command.PRIVMSG;
+                onMsgReceived(compactMessages
+                        ? TextMessage.compactUtf8(decoder.sender(), priv, decoder.textBytes())
+                        : new TextMessage(decoder.sender(), priv, decoder.text()));
+                break;
+
+            case MSGERR:
+                onMsgError(decoder.argument());
+                break;
+
+            case CMDERR:
+                onCmdError(decoder.argument());
+                break;
+
+            // TODO Step 8: add support for incoming supported command list (type: supported)
+
+            case SUPPORTED:
+                onSupported(decoder.words());
+                break;
+
+            // Join/leave notifications, only sent by servers that push presence changes
+            case JOINED:
+                onUsersChanged(presence.joined(decoder.argument()));
+                break;
+
+            case LEFT:
+                onUsersChanged(presence.left(decoder.argument()));
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Receives lines and the close notification for a non-blocking connection. Called on the
+     * event loop thread.
+     */
+    private class ChannelHandler implements NioEventLoop.LineHandler {
+        @Override
+        public void onLine(byte[] buf, int offset, int length) {
+            handleServerResponse(buf, offset, length);
+        }
+
+        @Override
+        public void onClosed(IOException cause) {
+            NioEventLoop.NioConnection lost;
+            synchronized (TCPClient.this) {
+                if (channelConnection == null || channelConnection.isOpen()) {
+                    // Closed on our side, disconnect() has already notified the listeners
+                    return;
+                }
+                lost = channelConnection;
+                channelConnection = null;
+            }
+            synchronized (outbound) {
+                // Commands the channel had accepted but not written are older than the buffered
+                // ones, put them back in front
+                List<ByteBuffer> unwritten = lost.takeUnwritten();
+                for (int i = unwritten.size() - 1; i >= 0; i--) {
+                    outbound.prepend(unwritten.get(i));
                 }
-                    switch (command) {
-                        case "loginok":
-                            onLoginResult(true, null);
-                            break;
+            }
+            lastError = cause != null
+                    ? "Error receiving message from server."
+                    : "Connection closed by the server.";
+            onConnectionLost();
+        }
+    }
+
+    /**
+     * Turn automatic reconnecting on or off. When on, a lost connection (not a call to
+     * disconnect()) is reopened by a background thread, waiting between the attempts as the
+     * policy decides. After connecting again the client logs in with the username of the last
+     * successful login. Listeners get onReconnecting() before every attempt and onReconnected()
+     * when the session is restored; onDisconnect() is only called when the policy gives up.
+     *
+     * @param policy The delays between attempts, or null to turn reconnecting off
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        this.reconnectPolicy = policy;
+    }
+
+    /**
+     * Keep the public and private messages that were not written when the connection was lost,
+     * and the ones sent while reconnecting, and send them once the session is restored. Off by
+     * default: the messages are dropped and the send methods fail while reconnecting.
+     *
+     * @param replayUnsent When true, unsent messages are sent after reconnecting
+     */
+    public void setReplayUnsent(boolean replayUnsent) {
+        this.replayUnsent = replayUnsent;
+    }
 
-                        case "loginerr":
-                            onLoginResult(false, argument);
-                            break;
+    /**
+     * @return true while the client is trying to restore a lost connection
+     */
+    public boolean isReconnecting() {
+        return reconnectThread != null;
+    }
+
+    /**
+     * Queue public and private messages whenever the client is not connected and logged in:
+     * while disconnected, while reconnecting and before the first login. The queued messages
+     * are sent in order, in batches, as soon as a login succeeds. A message leaves the queue
+     * only once it has been handed to the socket. Without a queue, sending while offline
+     * fails, and messages are only kept while reconnecting if setReplayUnsent() is on.
+     * Set the queue before connecting.
+     *
+     * @param queue The queue, for example one backed by a journal file so that the messages
+     *              survive a restart, or null to stop queueing while offline
+     */
+    public void setOutboundQueue(OutboundQueue queue) {
+        synchronized (outbound) {
+            this.unsent = queue != null ? queue : new OutboundQueue(DEFAULT_UNSENT_CAPACITY);
+            this.queueWhileOffline = queue != null;
+        }
+    }
+
+    /**
+     * @return true if an outbound queue is set, so messages sent while offline are queued
+     */
+    public boolean isQueueingWhileOffline() {
+        return queueWhileOffline;
+    }
+
+    /**
+     * @return true if messages must wait in the outbound queue until the session is open
+     */
+    private boolean isHoldingMessages() {
+        if (reconnectThread != null) {
+            return replayUnsent || queueWhileOffline;
+        }
+        return queueWhileOffline && (!isSessionOpen() || !unsent.isEmpty());
+    }
 
-                        // TODO Step 5: update this method, handle user-list response from the server
-                        //Hint: In Step 5 reuse onUserList() method
+    /**
+     * @return true if the client is connected and logged in, and not reconnecting
+     */
+    private boolean isSessionOpen() {
+        return reconnectThread == null && isConnectionActive() && sessionUsername != null;
+    }
 
-                        case "users":
-                            onUsersList(argument.split(" "));
-                            break;
+    private void drainIfSessionOpen() {
+        if (isSessionOpen()) {
+            drainUnsent();
+        }
+    }
 
-                        // TODO Step 7: add support for incoming chat messages from other users (types: msg, privmsg)
-                        // TODO Step 7: add support for incoming message errors (type: msgerr)
-                        // TODO Step 7: add support for incoming command errors (type: cmderr)
-                        // Hint for Step 7: call corresponding onXXX() methods which will notify all the listeners
+    /**
+     * Write the queued messages to the server, oldest first, a batch per write. Messages are
+     * removed from the queue once they are written, so after an error they are tried again
+     * later.
+     *
+     * @return true if all the messages were written
+     */
+    private boolean drainUnsent() {
+        synchronized (outbound) {
+            while (!unsent.isEmpty()) {
+                List<String> batch = unsent.peek(DRAIN_BATCH);
+                for (String cmd : batch) {
+                    outbound.appendLine(cmd);
+                }
+                if (!writeOutbound()) {
+                    return false;
+                }
+                unsent.remove(batch.size());
+            }
+            return true;
+        }
+    }
 
-                        case "msg", "privmsg":
-                            String[] senderAndMessage = argument.split(" ", 2);
-                            onMsgReceived(command.equals("privmsg"), senderAndMessage[0], senderAndMessage[1]);
-                            break;
+    /**
+     * Keep the messages that were still buffered when the connection was lost, or discard
+     * everything buffered. Must be called while holding the outbound lock.
+     *
+     * @param keep When true, public and private messages are moved to the outbound queue
+     */
+    private void saveUnsent(boolean keep) {
+        if (!keep) {
+            outbound.clear();
+            return;
+        }
+        for (String cmd : outbound.removeLines(TCPClient::isMessage)) {
+            if (!unsent.offer(cmd)) {
+                this.lastError = "Outbound queue is full, messages were dropped.";
+            }
+        }
+    }
 
-                        case "msgerr":
-                            onMsgError(argument);
-                            break;
+    /**
+     * The connection was lost without disconnect() being called. Start reconnecting if a
+     * policy is set, otherwise notify the listeners about the disconnect.
+     */
+    private void onConnectionLost() {
+        ReconnectPolicy policy = this.reconnectPolicy;
+        if (policy == null || host == null) {
+            synchronized (outbound) {
+                saveUnsent(queueWhileOffline);
+            }
+            onDisconnect();
+            return;
+        }
+        metrics.reconnecting();
+        onUsersChanged(presence.clear());
+        pending.failAll(new IOException("Connection to the server lost."));
+        synchronized (outbound) {
+            saveUnsent(replayUnsent || queueWhileOffline);
+        }
+        synchronized (this) {
+            if (reconnectThread == null) {
+                reconnectThread = threadFactory.newThread(() -> reconnect(policy));
+                reconnectThread.start();
+            }
+        }
+    }
 
-                        case "cmderr":
-                            onCmdError(argument);
-                            break;
+    /**
+     * @return true for the commands that are replayed after reconnecting
+     */
+    private static boolean isMessage(String cmd) {
+        return cmd.startsWith("msg ") || cmd.startsWith("privmsg ");
+    }
 
-                        // TODO Step 8: add support for incoming supported command list (type: supported)
+    /**
+     * Stop the reconnect thread, if running, and discard the messages waiting for it unless
+     * they are kept in an outbound queue.
+     *
+     * @return true if the client was reconnecting
+     */
+    private boolean stopReconnecting() {
+        Thread t;
+        synchronized (this) {
+            t = reconnectThread;
+            reconnectThread = null;
+        }
+        if (t == null) {
+            return false;
+        }
+        if (t != Thread.currentThread()) {
+            t.interrupt();
+        }
+        if (!queueWhileOffline) {
+            synchronized (outbound) {
+                unsent.clear();
+            }
+        }
+        return true;
+    }
 
-                        case "supported":
-                            onSupported(argument.split(" "));
-                            break;
+    /**
+     * Runs in the reconnect thread: try to connect and restore the session until it works or
+     * the policy gives up.
+     */
+    private void reconnect(ReconnectPolicy policy) {
+        Thread self = Thread.currentThread();
+        for (int attempt = 1; policy.mayAttempt(attempt); attempt++) {
+            long delay = policy.delayBeforeAttempt(attempt);
+            fire(ChatEvent.reconnecting(attempt, delay));
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                // Stopped by connect() or disconnect()
+                return;
+            }
+            if (reconnectThread != self) {
+                return;
+            }
+            if (openConnection(self)) {
+                startListenThread();
+                if (restoreSession(self)) {
+                    return;
+                }
+            }
+        }
+        synchronized (this) {
+            if (reconnectThread != self) {
+                return;
+            }
+            reconnectThread = null;
+            this.sessionUsername = null;
+        }
+        if (!queueWhileOffline) {
+            synchronized (outbound) {
+                unsent.clear();
+            }
+        }
+        onDisconnect();
+    }
 
-                        default:
-                            break;
+    /**
+     * Log in again on the new connection, then send the messages that waited for it.
+     *
+     * @param self The reconnect thread
+     * @return true when the session is restored, false if the connection must be retried
+     */
+    private boolean restoreSession(Thread self) {
+        String username = this.sessionUsername;
+        if (username != null) {
+            String error = null;
+            try {
+                LoginResult result = loginAsync(username)
+                        .get(RESTORE_LOGIN_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (!result.isSuccess()) {
+                    error = "Login after reconnecting failed: " + result.getErrMsg();
                 }
+            } catch (ExecutionException | TimeoutException e) {
+                error = "Login after reconnecting failed.";
+            } catch (InterruptedException e) {
+                // Stopped by connect() or disconnect(), which take care of the connection
+                return true;
+            }
+            if (error != null) {
+                this.lastError = error;
+                closeReconnected(self);
+                return false;
+            }
+        }
+        synchronized (this) {
+            if (reconnectThread != self) {
+                return true;
+            }
+            synchronized (outbound) {
+                reconnectThread = null;
+                writeOutbound();
+                drainUnsent();
+            }
+        }
+        fire(ChatEvent.reconnected());
+        return true;
+    }
+
+    /**
+     * Close a connection opened by the reconnect thread, without notifying the listeners
+     */
+    private synchronized void closeReconnected(Thread self) {
+        if (reconnectThread != self) {
+            return;
+        }
+        NioEventLoop.NioConnection channel = this.channelConnection;
+        Socket socket = this.connection;
+        this.channelConnection = null;
+        this.connection = null;
+        this.toServer = null;
+        if (channel != null) {
+            channel.close();
+        }
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
             }
         }
     }
@@ -296,9 +1152,7 @@ public class TCPClient {
      * @param listener
      */
     public void addListener(ChatListener listener) {
-        if (!listeners.contains(listener)) {
-            listeners.add(listener);
-        }
+        listeners.add(listener);
     }
 
     /**
@@ -308,8 +1162,62 @@ public class TCPClient {
      */
     public void removeListener(ChatListener listener) {
         listeners.remove(listener);
+        metrics.forgetListener(listener);
+    }
+
+
+    /**
+     * Deliver listener events through a dispatcher running on its own thread instead of calling
+     * the listeners on the thread that reads from the server. With a dispatcher, a slow listener
+     * no longer delays reading from the socket.
+     *
+     * @param dispatcher The dispatcher to use, or null to call the listeners directly
+     */
+    public void setEventDispatcher(EventDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Notify all the listeners about an event, either directly or through the dispatcher
+     *
+     * @param event The event to deliver
+     */
+    private void fire(ChatEvent event) {
+        ChatListener[] targets = listeners.snapshot();
+        if (targets.length == 0) {
+            return;
+        }
+        EventDispatcher d = this.dispatcher;
+        if (d != null) {
+            // The metrics identify this client in the dispatcher and receive the listener times
+            d.submit(metrics, event, targets);
+        } else {
+            for (ChatListener l : targets) {
+                long start = System.nanoTime();
+                event.deliverTo(l);
+                metrics.listenerCalled(l, System.nanoTime() - start);
+            }
+        }
     }
 
+    /**
+     * @return The metrics of this client: traffic, per-command counters, timings and queue
+     * depths. Call registerMBean() on them to watch them through JMX
+     */
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    private int outboundQueuedBytes() {
+        synchronized (outbound) {
+            return outbound.size();
+        }
+    }
+
+    private int dispatcherQueued() {
+        EventDispatcher d = this.dispatcher;
+        return d != null ? d.getQueuedCount() : 0;
+    }
 
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////
     // The following methods are all event-notificators - notify all the listeners about a specific event.
@@ -324,9 +1232,8 @@ public class TCPClient {
      * @param errMsg  Error message if any
      */
     private void onLoginResult(boolean success, String errMsg) {
-        for (ChatListener l : listeners) {
-            l.onLoginResult(success, errMsg);
-        }
+        fire(ChatEvent.loginResult(success, errMsg));
+        pending.complete(PendingRequests.Kind.LOGIN, new LoginResult(success, errMsg));
     }
 
     /**
@@ -336,9 +1243,10 @@ public class TCPClient {
     private void onDisconnect() {
         // TODO Step 4: Implement this method
         // Hint: all the onXXX() methods will be similar to onLoginResult()
-        for (ChatListener l : listeners) {
-            l.onDisconnect();
-        }
+        metrics.disconnected();
+        onUsersChanged(presence.clear());
+        fire(ChatEvent.disconnect());
+        pending.failAll(new IOException("Disconnected from the server."));
     }
 
     /**
@@ -348,23 +1256,31 @@ public class TCPClient {
      */
     private void onUsersList(String[] users) {
         // TODO Step 5: Implement this method
-        for (ChatListener l : listeners) {
-            l.onUserList(users);
+        UserPresence.Change change = presence.update(users);
+        fire(ChatEvent.userList(users));
+        onUsersChanged(change);
+        pending.complete(PendingRequests.Kind.USERS, List.of(users));
+    }
+
+    /**
+     * Notify listeners that users have logged in or out
+     *
+     * @param change Who joined and who left
+     */
+    private void onUsersChanged(UserPresence.Change change) {
+        if (!change.isEmpty()) {
+            fire(ChatEvent.usersChanged(change.getJoined(), change.getLeft()));
         }
     }
 
     /**
      * Notify listeners that a message is received from the server
      *
-     * @param priv   When true, this is a private message
-     * @param sender Username of the sender
-     * @param text   Message text
+     * @param message The received message
      */
-    private void onMsgReceived(boolean priv, String sender, String text) {
+    private void onMsgReceived(TextMessage message) {
         // TODO Step 7: Implement this method
-        for (ChatListener l : listeners) {
-            l.onMessageReceived(new TextMessage(sender, priv, text));
-        }
+        fire(ChatEvent.message(message));
     }
 
     /**
@@ -374,9 +1290,7 @@ public class TCPClient {
      */
     private void onMsgError(String errMsg) {
         // TODO Step 7: Implement this method
-        for (ChatListener l : listeners) {
-            l.onMessageError(errMsg);
-        }
+        fire(ChatEvent.messageError(errMsg));
     }
 
     /**
@@ -386,9 +1300,9 @@ public class TCPClient {
      */
     private void onCmdError(String errMsg) {
         // TODO Step 7: Implement this method
-        for (ChatListener l : listeners) {
-            l.onCommandError(errMsg);
-        }
+        fire(ChatEvent.commandError(errMsg));
+        // The server answers in order: a cmderr is the answer to the oldest pending request
+        pending.failOldest(new IOException("Command error: " + errMsg));
     }
 
     /**
@@ -399,9 +1313,8 @@ public class TCPClient {
      */
     private void onSupported(String[] commands) {
         // TODO Step 8: Implement this method
-        for (ChatListener l : listeners) {
-            l.onSupportedCommands(commands);
-        }
+        fire(ChatEvent.supported(commands));
+        pending.complete(PendingRequests.Kind.SUPPORTED, List.of(commands));
     }
 }
 
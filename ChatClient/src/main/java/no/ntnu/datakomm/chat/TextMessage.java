@@ -1,15 +1,27 @@
 package no.ntnu.datakomm.chat;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Objects;
 
 /**
  * Represents a chat message
+ *
+ * The sender name is taken from a bounded intern pool, so the messages of one sender share one
+ * String. A message can also be compact: it then keeps its text as UTF-8 bytes, about half the
+ * size of a String for non-Latin text, and decodes it on every getText() call. Compact messages
+ * suit large histories where most messages are never looked at again. Compact and normal
+ * messages with the same content are equal and have the same hash.
  */
 public class TextMessage {
 
     private final String sender;
     private final boolean priv;
+    // Exactly one of text and utf8 is set
     private final String text;
+    private final byte[] utf8;
+    // Cached hash code, 0 when not computed yet
+    private int hash;
 
     /**
      * @param sender Username of the sender
@@ -17,9 +29,52 @@ public class TextMessage {
      * @param text Text of the message
      */
     public TextMessage(String sender, boolean priv, String text) {
-        this.sender = sender;
+        this(sender, priv, text, null);
+    }
+
+    private TextMessage(String sender, boolean priv, String text, byte[] utf8) {
+        this.sender = SenderPool.intern(sender);
         this.priv = priv;
         this.text = text;
+        this.utf8 = utf8;
+    }
+
+    /**
+     * Create a compact message, which keeps its text as UTF-8 bytes.
+     *
+     * @param sender Username of the sender
+     * @param priv When true, message is private
+     * @param text Text of the message
+     * @return The message
+     */
+    public static TextMessage compact(String sender, boolean priv, String text) {
+        Objects.requireNonNull(text, "text");
+        return new TextMessage(sender, priv, null, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Create a compact message from text that is already encoded. The message takes over the
+     * array, the caller must not change it afterwards.
+     *
+     * @param sender Username of the sender
+     * @param priv When true, message is private
+     * @param utf8 Text of the message as UTF-8
+     * @return The message
+     */
+    static TextMessage compactUtf8(String sender, boolean priv, byte[] utf8) {
+        return new TextMessage(sender, priv, null, Objects.requireNonNull(utf8, "utf8"));
+    }
+
+    /**
+     * @return A compact message with the same content; this message if it is compact already
+     */
+    public TextMessage toCompact() {
+        if (utf8 != null || text == null) {
+            return this;
+        }
+        TextMessage compact = compact(sender, priv, text);
+        compact.hash = hash;
+        return compact;
     }
 
     public String getSender() {
@@ -31,26 +86,69 @@ public class TextMessage {
     }
 
     public String getText() {
-        return text;
+        return utf8 != null ? new String(utf8, StandardCharsets.UTF_8) : text;
+    }
+
+    /**
+     * @return true if the text is kept as UTF-8 bytes and decoded when asked for
+     */
+    public boolean isCompact() {
+        return utf8 != null;
     }
 
     @Override
     public String toString() {
-        return (priv ? "PRIVATE " : "") + " from " + sender + ": " + text;
+        return (priv ? "PRIVATE " : "") + " from " + sender + ": " + getText();
     }
 
     @Override
     public boolean equals(Object o) {
-        return o != null && o.hashCode() == this.hashCode();
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TextMessage)) {
+            return false;
+        }
+        TextMessage other = (TextMessage) o;
+        if (priv != other.priv || hashCode() != other.hashCode()
+                || !Objects.equals(sender, other.sender)) {
+            return false;
+        }
+        if (utf8 != null && other.utf8 != null) {
+            return Arrays.equals(utf8, other.utf8);
+        }
+        return Objects.equals(getText(), other.getText());
     }
 
     @Override
     public int hashCode() {
-        int hash = 3;
-        hash = 71 * hash + Objects.hashCode(this.sender);
-        hash = 71 * hash + (this.priv ? 1 : 0);
-        hash = 71 * hash + Objects.hashCode(this.text);
-        return hash;
+        int h = hash;
+        if (h == 0) {
+            h = 3;
+            h = 71 * h + Objects.hashCode(this.sender);
+            h = 71 * h + (this.priv ? 1 : 0);
+            h = 71 * h + textHash();
+            // Racing threads compute the same value
+            hash = h;
+        }
+        return h;
+    }
+
+    /**
+     * @return The hash code of the text String, without decoding ASCII text
+     */
+    private int textHash() {
+        if (utf8 == null) {
+            return Objects.hashCode(text);
+        }
+        int h = 0;
+        for (byte b : utf8) {
+            if (b < 0) {
+                return getText().hashCode();
+            }
+            h = 31 * h + b;
+        }
+        return h;
     }
 
 }
@@ -0,0 +1,85 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javafx.animation.AnimationTimer;
+
+/**
+ * Applies GUI updates posted from background threads once per frame, instead of posting one
+ * Platform.runLater() runnable per chat event. During a message storm the JavaFX event queue no
+ * longer fills up: at most a fixed number of updates run per frame, the rest wait for the next
+ * frame. Updates posted with a key are coalesced - if the same key is posted again before the
+ * update has run, only the newest update runs (in the position of the first one).
+ */
+class UiUpdatePump extends AnimationTimer {
+
+    /**
+     * Queue marker for a coalesced update
+     */
+    private static class Coalesced {
+        private final Object key;
+
+        Coalesced(Object key) {
+            this.key = key;
+        }
+    }
+
+    private final Queue<Object> queue = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<Object, Runnable> latest = new ConcurrentHashMap<>();
+    private final int maxUpdatesPerFrame;
+
+    /**
+     * @param maxUpdatesPerFrame Maximum number of updates applied in one frame
+     */
+    UiUpdatePump(int maxUpdatesPerFrame) {
+        this.maxUpdatesPerFrame = maxUpdatesPerFrame;
+    }
+
+    /**
+     * Run an update on the GUI thread in one of the next frames. Safe to call from any thread.
+     *
+     * @param update The update
+     */
+    void post(Runnable update) {
+        queue.add(update);
+    }
+
+    /**
+     * Run an update on the GUI thread in one of the next frames, replacing a pending update with
+     * the same key. Safe to call from any thread.
+     *
+     * @param key    Identifies updates that make each other obsolete
+     * @param update The update
+     */
+    void postCoalesced(Object key, Runnable update) {
+        if (latest.put(key, update) == null) {
+            queue.add(new Coalesced(key));
+        }
+    }
+
+    /**
+     * Called by JavaFX on the GUI thread once per frame.
+     *
+     * @param now Timestamp of the frame in nanoseconds
+     */
+    @Override
+    public void handle(long now) {
+        for (int i = 0; i < maxUpdatesPerFrame; i++) {
+            Object item = queue.poll();
+            if (item == null) {
+                break;
+            }
+            Runnable update = item instanceof Coalesced
+                    ? latest.remove(((Coalesced) item).key)
+                    : (Runnable) item;
+            if (update != null) {
+                try {
+                    update.run();
+                } catch (RuntimeException e) {
+                    System.out.println("GUI update failed: " + e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps track of the users that are logged in on the server. Every full user list received from
+ * the server is compared with the previous one, so that listeners can be told who joined and who
+ * left instead of rebuilding everything. Join/leave notifications pushed by the server (when the
+ * server supports them) are applied directly.
+ *
+ * The class also decides how often the user list should be polled: polling backs off while the
+ * list does not change and returns to the fast rate as soon as something happens.
+ */
+public class UserPresence {
+
+    /**
+     * The difference between two states of the user list
+     */
+    static class Change {
+        private final List<String> joined;
+        private final List<String> left;
+
+        Change(List<String> joined, List<String> left) {
+            this.joined = joined;
+            this.left = left;
+        }
+
+        List<String> getJoined() {
+            return joined;
+        }
+
+        List<String> getLeft() {
+            return left;
+        }
+
+        boolean isEmpty() {
+            return joined.isEmpty() && left.isEmpty();
+        }
+    }
+
+    // Poll interval used right after a change, in milliseconds
+    public static final long MIN_POLL_INTERVAL = 3000;
+    // Poll interval used when nothing has changed for a long time, in milliseconds
+    public static final long MAX_POLL_INTERVAL = 30000;
+
+    private Set<String> users = new LinkedHashSet<>();
+    private long pollInterval = MIN_POLL_INTERVAL;
+    private boolean pushActive = false;
+
+    /**
+     * Apply a full user list received from the server.
+     *
+     * @param usernames All the users currently logged in
+     * @return Who joined and who left since the previous list
+     */
+    synchronized Change update(String[] usernames) {
+        Set<String> next = new LinkedHashSet<>(usernames.length * 2);
+        List<String> joined = new ArrayList<>();
+        for (String user : usernames) {
+            if (next.add(user) && !users.contains(user)) {
+                joined.add(user);
+            }
+        }
+        List<String> left = new ArrayList<>();
+        for (String user : users) {
+            if (!next.contains(user)) {
+                left.add(user);
+            }
+        }
+        users = next;
+        Change change = new Change(joined, left);
+        if (change.isEmpty()) {
+            pollInterval = Math.min(pollInterval * 2, MAX_POLL_INTERVAL);
+        } else {
+            pollInterval = MIN_POLL_INTERVAL;
+        }
+        return change;
+    }
+
+    /**
+     * Apply a notification from the server that a user has logged in.
+     *
+     * @param username The user who joined
+     * @return The change, empty if the user was already known
+     */
+    synchronized Change joined(String username) {
+        pushActive = true;
+        if (!users.add(username)) {
+            return new Change(Collections.emptyList(), Collections.emptyList());
+        }
+        return new Change(List.of(username), Collections.emptyList());
+    }
+
+    /**
+     * Apply a notification from the server that a user has left.
+     *
+     * @param username The user who left
+     * @return The change, empty if the user was not known
+     */
+    synchronized Change left(String username) {
+        pushActive = true;
+        if (!users.remove(username)) {
+            return new Change(Collections.emptyList(), Collections.emptyList());
+        }
+        return new Change(Collections.emptyList(), List.of(username));
+    }
+
+    /**
+     * Forget all users, for example when the connection is closed.
+     *
+     * @return The change: everybody left
+     */
+    synchronized Change clear() {
+        List<String> left = new ArrayList<>(users);
+        users = new LinkedHashSet<>();
+        pollInterval = MIN_POLL_INTERVAL;
+        pushActive = false;
+        return new Change(Collections.emptyList(), left);
+    }
+
+    /**
+     * @return The users currently logged in, in the order the server listed them
+     */
+    public synchronized List<String> getUsers() {
+        return new ArrayList<>(users);
+    }
+
+    /**
+     * @return true if the server pushes join/leave notifications, so polling is only a fallback
+     */
+    public synchronized boolean isPushActive() {
+        return pushActive;
+    }
+
+    /**
+     * @return How long to wait before polling the user list again, in milliseconds
+     */
+    public synchronized long nextPollInterval() {
+        return pushActive ? MAX_POLL_INTERVAL : pollInterval;
+    }
+}
@@ -0,0 +1,87 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedReader;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.EmbeddedChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChatConsoleTest {
+    private static final int RESPONSE_TIMEOUT = 5000;
+
+    private EmbeddedChatServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new EmbeddedChatServer();
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    /**
+     * Test that a script is executed and the answers are written as event lines
+     *
+     * @throws Exception When test is interrupted or a response does not arrive in time
+     */
+    @Test
+    public void testScript() throws Exception {
+        TCPClient other = new TCPClient();
+        DummyMsgReceiver receiver = new DummyMsgReceiver();
+        other.addListener(receiver);
+        assertTrue(other.connect(server.getHost(), server.getPort()));
+        other.startListenThread();
+        assertTrue(other.loginAsync("other").get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS)
+                .isSuccess());
+
+        TCPClient client = new TCPClient();
+        StringWriter out = new StringWriter();
+        ChatConsole console = new ChatConsole(client, new PrintWriter(out));
+        assertTrue(client.connect(server.getHost(), server.getPort()));
+        client.startListenThread();
+        String script = String.join("\n",
+                "# A comment",
+                "/login bot",
+                "/users",
+                "hello all",
+                "/privmsg other psst",
+                "",
+                "/bogus",
+                "/quit",
+                "never sent");
+        assertEquals(0, console.run(new BufferedReader(new StringReader(script)), false));
+
+        assertTrue(receiver.awaitMessage(new TextMessage("bot", false, "hello all"),
+                RESPONSE_TIMEOUT));
+        assertTrue(receiver.awaitMessage(new TextMessage("bot", true, "psst"), RESPONSE_TIMEOUT));
+        assertFalse(receiver.hasReceived(new TextMessage("bot", false, "never sent")));
+
+        List<String> lines = Arrays.asList(out.toString().split("\\R"));
+        assertEquals("loginok", lines.get(0));
+        assertTrue(lines.contains("users\tbot other") || lines.contains("users\tother bot"));
+        assertTrue(lines.contains("error\tUnknown command: /bogus"));
+        assertEquals("disconnected", lines.get(lines.size() - 1));
+        other.disconnect();
+    }
+
+    /**
+     * Test escaping of the event fields
+     */
+    @Test
+    public void testEscape() {
+        assertEquals("plain text", ChatConsole.escape("plain text"));
+        assertEquals("a\\tb\\\\c\\nd\\r", ChatConsole.escape("a\tb\\c\nd\r"));
+        assertEquals("", ChatConsole.escape(null));
+    }
+}
@@ -0,0 +1,115 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.EmbeddedChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChatSessionManagerTest {
+    private static final int RESPONSE_TIMEOUT = 5000;
+
+    private EmbeddedChatServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new EmbeddedChatServer();
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    /**
+     * Test that sessions share the manager, but each session only gets its own events
+     *
+     * @throws Exception When test is interrupted or a response does not arrive in time
+     */
+    @Test
+    public void testSessions() throws Exception {
+        try (ChatSessionManager manager = new ChatSessionManager(1)) {
+            DummyMsgReceiver[] receivers = new DummyMsgReceiver[3];
+            for (int i = 0; i < receivers.length; i++) {
+                receivers[i] = new DummyMsgReceiver();
+                assertTrue(manager.openSession("s" + i, server.getHost(), server.getPort(),
+                        "user" + i, receivers[i]).get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS)
+                        .isSuccess());
+            }
+            assertEquals(3, manager.size());
+            try {
+                manager.createSession("s0");
+                fail("Session names must be unique");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+
+            assertTrue(manager.getSession("s0").sendPublicMessage("from zero"));
+            TextMessage fromZero = new TextMessage("user0", false, "from zero");
+            assertTrue(receivers[1].awaitMessage(fromZero, RESPONSE_TIMEOUT));
+            assertTrue(receivers[2].awaitMessage(fromZero, RESPONSE_TIMEOUT));
+
+            assertTrue(manager.broadcast("hello all").isEmpty());
+            assertTrue(receivers[0].awaitMessage(new TextMessage("user1", false, "hello all"),
+                    RESPONSE_TIMEOUT));
+            assertTrue(receivers[0].awaitMessage(new TextMessage("user2", false, "hello all"),
+                    RESPONSE_TIMEOUT));
+            // The server does not echo messages, so a session does not see its own
+            assertFalse(receivers[0].hasReceived(fromZero));
+
+            Map<String, ClientMetrics.Snapshot> stats = manager.getStats();
+            assertEquals(3, stats.size());
+            assertEquals(2, stats.get("s0").getOutboundCount("msg"));
+            assertEquals(1, manager.getStats("s1").getOutboundCount("msg"));
+            assertNull(manager.getStats("missing"));
+
+            assertTrue(manager.closeSession("s2"));
+            assertFalse(manager.closeSession("s2"));
+            assertTrue(server.awaitClientCount(2, RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS));
+            manager.disconnectAll();
+            assertEquals(0, manager.size());
+            assertTrue(server.awaitClientCount(0, RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * Test that a session that can't connect is not kept
+     *
+     * @throws Exception When the manager can't be created
+     */
+    @Test
+    public void testConnectFailure() throws Exception {
+        int port = server.getPort();
+        server.close();
+        try (ChatSessionManager manager = new ChatSessionManager(1)) {
+            assertTrue(manager.openSession("s", server.getHost(), port, "nobody", null)
+                    .isCompletedExceptionally());
+            assertEquals(0, manager.size());
+        }
+    }
+
+    /**
+     * Test that no session can be created once the manager is closed
+     *
+     * @throws Exception When the manager can't be created
+     */
+    @Test
+    public void testClosed() throws Exception {
+        ChatSessionManager manager = new ChatSessionManager(1);
+        TCPClient client = manager.createSession("s");
+        assertTrue(client.connect(server.getHost(), server.getPort()));
+        manager.close();
+        assertEquals(0, manager.size());
+        assertFalse(client.isConnectionActive());
+        try {
+            manager.createSession("late");
+            fail("A closed manager must not create sessions");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package no.ntnu.datakomm.chat;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.EmbeddedChatServer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ClientMetricsTest {
+    private static final int RESPONSE_TIMEOUT = 5000;
+
+    /**
+     * Test that traffic, commands and connection state are counted
+     *
+     * @throws Exception When a response does not arrive in time
+     */
+    @Test
+    public void testCounters() throws Exception {
+        try (EmbeddedChatServer server = new EmbeddedChatServer()) {
+            TCPClient client = new TCPClient();
+            assertEquals(ConnectionState.DISCONNECTED, client.getMetrics().getState());
+            assertTrue(client.connect(server.getHost(), server.getPort()));
+            client.startListenThread();
+            DummyMsgReceiver receiver = new DummyMsgReceiver();
+            client.addListener(receiver);
+
+            client.loginAsync("Bad username").get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
+            client.loginAsync("metrics").get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
+            client.usersAsync().get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
+            client.sendPublicMessage("hello");
+            assertTrue(server.awaitReceived("msg hello", RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS));
+
+            ClientMetrics.Snapshot snapshot = client.getMetrics().snapshot();
+            assertEquals(ConnectionState.CONNECTED, snapshot.getConnectionState());
+            assertEquals(2, snapshot.getOutboundCount("login"));
+            assertEquals(1, snapshot.getOutboundCount("users"));
+            assertEquals(1, snapshot.getOutboundCount("msg"));
+            assertEquals(4, snapshot.getLinesOut());
+            assertEquals(1, snapshot.getInboundCount("loginerr"));
+            assertEquals(1, snapshot.getInboundCount("loginok"));
+            assertEquals(1, snapshot.getInboundCount("users"));
+            assertEquals(3, snapshot.getLinesIn());
+            assertEquals("users metrics\n".length() + "loginok\n".length()
+                    + "loginerr incorrect username format\n".length(), snapshot.getBytesIn());
+            assertEquals(1, snapshot.getListenerDispatchTimeMean().size());
+            assertEquals(0, snapshot.getPendingRequests());
+            assertEquals(0, snapshot.getReconnectCount());
+
+            client.disconnect();
+            assertEquals(ConnectionState.DISCONNECTED, client.getMetrics().getState());
+            // Connecting again by hand is not a reconnect, only the reconnect supervisor's are
+            assertTrue(client.connect(server.getHost(), server.getPort()));
+            assertEquals(0, client.getMetrics().getReconnectCount());
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Test that the metrics can be read through JMX
+     *
+     * @throws Exception When registration fails
+     */
+    @Test
+    public void testMBean() throws Exception {
+        TCPClient client = new TCPClient();
+        ObjectName name = client.getMetrics().registerMBean("metrics-test");
+        try {
+            assertEquals("DISCONNECTED",
+                    ManagementFactory.getPlatformMBeanServer().getAttribute(name, "ConnectionState"));
+            assertEquals(0L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "BytesIn"));
+        } finally {
+            client.getMetrics().unregisterMBean();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
@@ -0,0 +1,69 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CommandDecoderTest {
+
+    private final CommandDecoder decoder = new CommandDecoder();
+
+    /**
+     * Decode a line placed in the middle of a larger buffer, the way the line readers hand it over
+     */
+    private CommandDecoder.Command decode(String line) {
+        byte[] bytes = ("xx" + line + "\nyy").getBytes(StandardCharsets.UTF_8);
+        return decoder.decode(bytes, 2, bytes.length - 5);
+    }
+
+    /**
+     * Test that every command word of the protocol is recognised
+     */
+    @Test
+    public void testCommandWords() {
+        assertEquals(CommandDecoder.Command.LOGINOK, decode("loginok"));
+        assertEquals(CommandDecoder.Command.LOGINERR, decode("loginerr incorrect username"));
+        assertEquals(CommandDecoder.Command.USERS, decode("users a b"));
+        assertEquals(CommandDecoder.Command.MSG, decode("msg a hello"));
+        assertEquals(CommandDecoder.Command.PRIVMSG, decode("privmsg a hello"));
+        assertEquals(CommandDecoder.Command.MSGERR, decode("msgerr no such user"));
+        assertEquals(CommandDecoder.Command.CMDERR, decode("cmderr unknown"));
+        assertEquals(CommandDecoder.Command.SUPPORTED, decode("supported msg help"));
+        assertEquals(CommandDecoder.Command.UNKNOWN, decode("msgs a b"));
+        assertEquals(CommandDecoder.Command.UNKNOWN, decode("ms"));
+        assertEquals(CommandDecoder.Command.UNKNOWN, decode(""));
+    }
+
+    /**
+     * Test that the fields of a message are extracted and trimmed like the old String-based parser did
+     */
+    @Test
+    public void testMessageFields() {
+        assertEquals(CommandDecoder.Command.PRIVMSG, decode("  privmsg  bob hello  world \r"));
+        assertEquals("bob", decoder.sender());
+        assertEquals("hello  world", decoder.text());
+        assertEquals("bob hello  world", decoder.argument());
+
+        decode("msg æøå Blåbærsyltetøy");
+        assertEquals("æøå", decoder.sender());
+        assertEquals("Blåbærsyltetøy", decoder.text());
+
+        decode("msg lonely");
+        assertEquals("lonely", decoder.sender());
+        assertEquals("", decoder.text());
+    }
+
+    /**
+     * Test splitting of user lists and supported command lists
+     */
+    @Test
+    public void testWords() {
+        decode("users alice  bob carol ");
+        assertArrayEquals(new String[]{"alice", "bob", "carol"}, decoder.words());
+
+        decode("users");
+        assertEquals(0, decoder.words().length);
+        assertEquals("", decoder.argument());
+    }
+}
@@ -0,0 +1,135 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EventDispatcherTest {
+    private final ClientMetrics metrics = new ClientMetrics(() -> 0, () -> 0, () -> 0);
+
+    /**
+     * A listener that blocks the dispatcher thread on the first event until released
+     */
+    private static class GateListener extends EmptyChatListener {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void onCommandError(String errMsg) {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Fill a dispatcher with capacity 2 while its thread is stuck in a listener
+     */
+    private GateListener stall(EventDispatcher dispatcher, ClientMetrics source)
+            throws InterruptedException {
+        GateListener gate = new GateListener();
+        dispatcher.submit(source, ChatEvent.commandError("stall"), new ChatListener[]{gate});
+        assertTrue(gate.entered.await(5, TimeUnit.SECONDS));
+        return gate;
+    }
+
+    /**
+     * Test that events are delivered in order, all of them arrive, and the time the listener
+     * takes is recorded in the metrics
+     */
+    @Test
+    public void testOrderedDelivery() throws InterruptedException {
+        EventDispatcher dispatcher = new EventDispatcher(4, EventDispatcher.OverflowPolicy.BLOCK);
+        StringBuilder received = new StringBuilder();
+        ChatListener[] targets = {new EmptyChatListener() {
+            @Override
+            public void onMessageReceived(TextMessage message) {
+                received.append(message.getText());
+            }
+        }};
+        for (int i = 0; i < 100; i++) {
+            dispatcher.submit(metrics, ChatEvent.message(new TextMessage("a", false, i % 10 + "")), targets);
+        }
+        assertTrue(dispatcher.awaitIdle(5, TimeUnit.SECONDS));
+        assertEquals("0123456789".repeat(10), received.toString());
+        assertEquals(0, dispatcher.getDroppedCount());
+        assertEquals(1, metrics.getListenerDispatchTimeMean().size());
+        dispatcher.close();
+    }
+
+    /**
+     * Test that the oldest events are discarded when the buffer is full
+     */
+    @Test
+    public void testDropOldest() throws InterruptedException {
+        EventDispatcher dispatcher = new EventDispatcher(2, EventDispatcher.OverflowPolicy.DROP_OLDEST);
+        DummyResponseCounter counter = new DummyResponseCounter();
+        ChatListener[] targets = {counter};
+        GateListener gate = stall(dispatcher, metrics);
+        dispatcher.submit(metrics, ChatEvent.messageError("1"), targets);
+        dispatcher.submit(metrics, ChatEvent.messageError("2"), targets);
+        dispatcher.submit(metrics, ChatEvent.loginResult(true, null), targets);
+        gate.release.countDown();
+        assertTrue(dispatcher.awaitIdle(5, TimeUnit.SECONDS));
+        assertEquals(1, counter.msgErr);
+        assertEquals(1, counter.loginSuccess);
+        assertEquals(1, dispatcher.getDroppedCount());
+        dispatcher.close();
+    }
+
+    /**
+     * Test that a listener submitting events while the buffer is full does not wait for its own
+     * thread, but discards the oldest event
+     */
+    @Test
+    public void testSubmitFromListener() throws InterruptedException {
+        EventDispatcher dispatcher = new EventDispatcher(2, EventDispatcher.OverflowPolicy.BLOCK);
+        DummyResponseCounter counter = new DummyResponseCounter();
+        ChatListener[] targets = {counter};
+        CountDownLatch submitted = new CountDownLatch(1);
+        ChatListener resubmitter = new EmptyChatListener() {
+            @Override
+            public void onCommandError(String errMsg) {
+                for (int i = 0; i < 3; i++) {
+                    dispatcher.submit(metrics, ChatEvent.messageError(Integer.toString(i)),
+                            targets);
+                }
+                submitted.countDown();
+            }
+        };
+        dispatcher.submit(metrics, ChatEvent.commandError("resubmit"),
+                new ChatListener[]{resubmitter});
+        assertTrue(submitted.await(5, TimeUnit.SECONDS));
+        assertTrue(dispatcher.awaitIdle(5, TimeUnit.SECONDS));
+        assertEquals(2, counter.msgErr);
+        assertEquals(1, dispatcher.getDroppedCount());
+        dispatcher.close();
+    }
+
+    /**
+     * Test that an obsolete user list is replaced by the newer one when the buffer is full
+     */
+    @Test
+    public void testCoalesceUserLists() throws InterruptedException {
+        EventDispatcher dispatcher = new EventDispatcher(2, EventDispatcher.OverflowPolicy.COALESCE);
+        DummyResponseCounter counter = new DummyResponseCounter();
+        ChatListener[] targets = {counter};
+        GateListener gate = stall(dispatcher, metrics);
+        dispatcher.submit(metrics, ChatEvent.userList(new String[]{"a"}), targets);
+        dispatcher.submit(metrics, ChatEvent.messageError("1"), targets);
+        dispatcher.submit(metrics, ChatEvent.userList(new String[]{"a", "b"}), targets);
+        gate.release.countDown();
+        assertTrue(dispatcher.awaitIdle(5, TimeUnit.SECONDS));
+        assertEquals(1, counter.userList);
+        assertEquals(1, counter.msgErr);
+        assertEquals(1, dispatcher.getDroppedCount());
+        dispatcher.close();
+    }
+}
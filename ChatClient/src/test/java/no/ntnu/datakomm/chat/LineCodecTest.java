@@ -0,0 +1,63 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LineCodecTest {
+
+    private final LineCodec codec = new LineCodec();
+
+    /**
+     * Test that ASCII and non-ASCII text survive encoding and decoding
+     */
+    @Test
+    public void testRoundTrip() {
+        for (String text : new String[]{"msg alice Hello", "msg bjørn Hei på deg", "privmsg 李 你好",
+                "msg eve 😀 smile", ""}) {
+            byte[] buf = new byte[2 + LineCodec.maxEncodedLength(text)];
+            int end = codec.encode(text, buf, 2);
+            assertArrayEquals(text.getBytes(StandardCharsets.UTF_8),
+                    Arrays.copyOfRange(buf, 2, end));
+            assertEquals(text, codec.decode(buf, 2, end - 2));
+            assertEquals(text, codec.decode(ByteBuffer.wrap(buf, 2, end - 2)));
+        }
+    }
+
+    /**
+     * Test that invalid UTF-8 is replaced instead of failing
+     */
+    @Test
+    public void testInvalidBytes() {
+        byte[] buf = {'m', 's', 'g', ' ', (byte) 0xC3};
+        assertEquals("msg �", codec.decode(buf, 0, buf.length));
+    }
+
+    /**
+     * Test the maximum line length, when sending and when reading
+     *
+     * @throws Exception When reading fails for another reason than the long line
+     */
+    @Test
+    public void testMaxLineLength() throws Exception {
+        assertTrue(LineCodec.fits("msg 1234", 8));
+        assertFalse(LineCodec.fits("msg 12345", 8));
+        assertTrue(LineCodec.fits("msg æøå", 10));
+        assertFalse(LineCodec.fits("msg æøåæ", 10));
+
+        byte[] input = "short\r\ntoo long line\n".getBytes(StandardCharsets.UTF_8);
+        LineReader reader = new LineReader(new ByteArrayInputStream(input), 8);
+        assertEquals(5, reader.readLine());
+        try {
+            reader.readLine();
+            fail("A line longer than the maximum must be refused");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
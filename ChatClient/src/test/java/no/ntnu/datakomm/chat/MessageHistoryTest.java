@@ -0,0 +1,94 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class MessageHistoryTest {
+    private static final int STORE_TIMEOUT = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test that messages are kept in the store, older ones are read back from it, and
+     * transient messages are shown but never stored
+     *
+     * @throws Exception When the store can't be used
+     */
+    @Test
+    public void testStoreAndTransient() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        try (MessageStore store = new MessageStore(dir)) {
+            store.append(new TextMessage("bob", false, "old 0"), 0);
+            store.append(new TextMessage("bob", false, "old 1"), 0);
+        }
+
+        MessageHistory history = new MessageHistory(3);
+        history.setStore(new MessageStore(dir));
+        assertEquals(2, history.size());
+        for (String text : new String[]{"a", "b", "c", "d"}) {
+            history.add(entry("alice", text));
+        }
+        history.addTransient(new MessageHistory.Entry(
+                new TextMessage("info", false, "Found 1 message(s)"), true, true, false));
+        assertEquals(7, history.size());
+        assertEquals(List.of("old 0", "old 1", "a", "b", "c", "d", "Found 1 message(s)"),
+                texts(history));
+
+        // The transient message is dropped once it falls out of the buffer
+        for (String text : new String[]{"e", "f", "g"}) {
+            history.add(entry("alice", text));
+        }
+        assertEquals(List.of("old 0", "old 1", "a", "b", "c", "d", "e", "f", "g"),
+                texts(history));
+        history.close();
+
+        try (MessageStore store = new MessageStore(dir)) {
+            assertEquals(9, store.size());
+            assertEquals("g", store.get(8).getMessage().getText());
+            assertTrue(store.findBySender("info", 10).isEmpty());
+            assertTrue(store.search("found", 10).isEmpty());
+        }
+    }
+
+    /**
+     * Test that the history goes on in memory when appending to the store fails
+     *
+     * @throws Exception When the store can't be used
+     */
+    @Test
+    public void testStoreFailure() throws Exception {
+        MessageHistory history = new MessageHistory(3);
+        history.setStore(new MessageStore(folder.getRoot().toPath(), 1024));
+        history.add(entry("alice", "fits"));
+        // Too large for the segments
+        history.add(entry("alice", "x".repeat(2000)));
+        long deadline = System.currentTimeMillis() + STORE_TIMEOUT;
+        while (history.getStore() != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            history.add(entry("alice", "after"));
+        }
+        assertNull(history.getStore());
+        assertEquals(3, history.size());
+        assertEquals("after", history.get(2).getMessage().getText());
+        history.close();
+    }
+
+    private static MessageHistory.Entry entry(String sender, String text) {
+        return new MessageHistory.Entry(new TextMessage(sender, false, text), false, false, false);
+    }
+
+    private static List<String> texts(MessageHistory history) {
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < history.size(); i++) {
+            texts.add(history.get(i).getMessage().getText());
+        }
+        return texts;
+    }
+}
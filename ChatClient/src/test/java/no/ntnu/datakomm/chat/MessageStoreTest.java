@@ -0,0 +1,116 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class MessageStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test that messages are stored across segments and loaded again when the store is reopened
+     *
+     * @throws Exception When the store can't be used
+     */
+    @Test
+    public void testAppendRollAndReopen() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        try (MessageStore store = new MessageStore(dir, 1024)) {
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, store.append(new TextMessage("user" + (i % 3), i % 2 == 1,
+                        "message number " + i), i == 0 ? MessageStore.LOCAL : 0));
+            }
+            assertEquals(100, store.size());
+        }
+        // Small segments, so the log was rolled several times
+        assertTrue(folder.getRoot().list().length > 1);
+
+        try (MessageStore store = new MessageStore(dir, 1024)) {
+            assertEquals(100, store.size());
+            MessageStore.Record first = store.get(0);
+            assertEquals(new TextMessage("user0", false, "message number 0"), first.getMessage());
+            assertTrue(first.isLocal());
+            assertFalse(first.isWarning());
+            assertTrue(first.getTimestamp() > 0);
+            assertTrue(store.get(99).getMessage().isPrivate());
+
+            List<MessageStore.Record> page = store.read(50, 10);
+            assertEquals(10, page.size());
+            assertEquals(50, page.get(0).getId());
+            assertEquals("message number 59", page.get(9).getMessage().getText());
+
+            // Appending continues after the loaded messages
+            assertEquals(100, store.append(new TextMessage("late", false, "after reopen"), 0));
+            assertEquals("after reopen", store.get(100).getMessage().getText());
+        }
+    }
+
+    /**
+     * Test the sender index and the word index
+     *
+     * @throws Exception When the store can't be used
+     */
+    @Test
+    public void testSearch() throws Exception {
+        try (MessageStore store = new MessageStore(folder.getRoot().toPath())) {
+            store.append(new TextMessage("alice", false, "Hello Bob, lunch today?"), 0);
+            store.append(new TextMessage("bob", false, "Lunch sounds good"), 0);
+            store.append(new TextMessage("alice", true, "Hello again"), 0);
+            store.append(new TextMessage("err", false, "Error: lunch failed"), MessageStore.WARNING);
+
+            List<MessageStore.Record> fromAlice = store.findBySender("alice", 10);
+            assertEquals(2, fromAlice.size());
+            // Newest first
+            assertEquals("Hello again", fromAlice.get(0).getMessage().getText());
+            assertEquals(1, store.findBySender("alice", 1).size());
+            assertTrue(store.findBySender("carol", 10).isEmpty());
+
+            // Warnings are not in the word index
+            assertEquals(2, store.search("LUNCH", 10).size());
+            List<MessageStore.Record> hello = store.search("hello lunch", 10);
+            assertEquals(1, hello.size());
+            assertEquals(0, hello.get(0).getId());
+            assertTrue(store.search("hello dinner", 10).isEmpty());
+            assertTrue(store.search("  ?! ", 10).isEmpty());
+        }
+    }
+
+    /**
+     * Test that a record with a bad length ends the segment instead of failing to open it
+     *
+     * @throws Exception When the store can't be used
+     */
+    @Test
+    public void testBadRecordLength() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        try (MessageStore store = new MessageStore(dir)) {
+            store.append(new TextMessage("a", false, "one"), 0);
+            store.append(new TextMessage("a", false, "two"), 0);
+            store.append(new TextMessage("a", false, "three"), 0);
+        }
+        // Each of the first two records takes 4 + 15 bytes. Corrupt the length of the second
+        for (int badLength : new int[]{-5, 3, Integer.MAX_VALUE}) {
+            try (RandomAccessFile file = new RandomAccessFile(
+                    dir.resolve("segment-00000000.log").toFile(), "rw")) {
+                file.seek(19);
+                file.writeInt(badLength);
+            }
+            try (MessageStore store = new MessageStore(dir)) {
+                assertEquals(1, store.size());
+                assertEquals("one", store.get(0).getMessage().getText());
+                assertEquals(1, store.append(new TextMessage("a", false, "again"), 0));
+            }
+            try (MessageStore store = new MessageStore(dir)) {
+                assertEquals(2, store.size());
+                assertEquals("again", store.get(1).getMessage().getText());
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OutboundBufferTest {
+
+    /**
+     * Test that commands of a failed write stay buffered, behind the unwritten commands of the
+     * channel, so that the messages among them can be saved
+     */
+    @Test
+    public void testFailedWriteKeepsCommands() {
+        OutboundBuffer buffer = new OutboundBuffer();
+        buffer.appendLine("msg late");
+        buffer.appendLine("users");
+        OutputStream broken = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+        try {
+            buffer.writeTo(broken);
+            fail("Writing to a broken stream must fail");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals(2, buffer.lineCount());
+
+        // Accepted by a channel, but never written
+        OutboundBuffer written = new OutboundBuffer();
+        written.appendLine("msg early");
+        buffer.prepend(written.copy());
+        assertEquals(3, buffer.lineCount());
+        assertEquals(List.of("msg early", "msg late"),
+                buffer.removeLines(line -> line.startsWith("msg ")));
+        assertTrue(buffer.isEmpty());
+    }
+}
@@ -0,0 +1,106 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.EmbeddedChatServer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class OutboundQueueTest {
+    private static final int RESPONSE_TIMEOUT = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test that the queue keeps the order, wraps around and refuses commands when full
+     */
+    @Test
+    public void testBounded() {
+        OutboundQueue queue = new OutboundQueue(3);
+        assertTrue(queue.offer("msg 1"));
+        assertTrue(queue.offer("msg 2"));
+        assertTrue(queue.offer("msg 3"));
+        assertFalse(queue.offer("msg 4"));
+        assertEquals(List.of("msg 1", "msg 2"), queue.peek(2));
+        queue.remove(2);
+        assertTrue(queue.offer("msg 5"));
+        assertEquals(List.of("msg 3", "msg 5"), queue.peek(10));
+        queue.clear();
+        assertTrue(queue.isEmpty());
+    }
+
+    /**
+     * Test that waiting commands are loaded from the journal, and the journal is emptied when
+     * the queue is
+     *
+     * @throws Exception When the journal can't be used
+     */
+    @Test
+    public void testJournal() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("outbound.journal");
+        try (OutboundQueue queue = new OutboundQueue(10, file)) {
+            queue.offer("msg a");
+            queue.offer("privmsg bob b");
+            queue.offer("msg c");
+            queue.remove(1);
+        }
+        try (OutboundQueue queue = new OutboundQueue(10, file)) {
+            assertEquals(List.of("privmsg bob b", "msg c"), queue.peek(10));
+            // Compacted when opened
+            assertEquals(2, Files.readAllLines(file).size());
+            queue.remove(2);
+            assertEquals(0, Files.size(file));
+        }
+        try (OutboundQueue queue = new OutboundQueue(10, file)) {
+            assertTrue(queue.isEmpty());
+        }
+    }
+
+    /**
+     * Test that messages sent before connecting and logging in are sent after the login
+     *
+     * @throws Exception When test is interrupted or a response does not arrive in time
+     */
+    @Test
+    public void testQueueWhileOffline() throws Exception {
+        try (EmbeddedChatServer server = new EmbeddedChatServer()) {
+            TCPClient observer = new TCPClient();
+            assertTrue(observer.connect(server.getHost(), server.getPort()));
+            observer.startListenThread();
+            DummyMsgReceiver receiver = new DummyMsgReceiver();
+            observer.addListener(receiver);
+            observer.loginAsync("observer").get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
+
+            TCPClient client = new TCPClient();
+            assertFalse(client.isQueueingWhileOffline());
+            OutboundQueue queue = new OutboundQueue(10);
+            client.setOutboundQueue(queue);
+            assertTrue(client.isQueueingWhileOffline());
+            assertTrue(client.sendPublicMessage("before connect"));
+            assertTrue(client.connect(server.getHost(), server.getPort()));
+            client.startListenThread();
+            assertTrue(client.sendPrivateMessage("observer", "before login"));
+            assertEquals(2, queue.size());
+            client.loginAsync("queued").get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
+
+            assertTrue(receiver.awaitMessage(new TextMessage("queued", false, "before connect"),
+                    RESPONSE_TIMEOUT));
+            assertTrue(receiver.awaitMessage(new TextMessage("queued", true, "before login"),
+                    RESPONSE_TIMEOUT));
+            assertTrue(queue.isEmpty());
+
+            // After disconnecting, messages are queued again
+            client.disconnect();
+            assertTrue(client.sendPublicMessage("after disconnect"));
+            assertEquals(1, queue.size());
+            observer.disconnect();
+        }
+    }
+}
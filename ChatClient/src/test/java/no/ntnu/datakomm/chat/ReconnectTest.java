@@ -0,0 +1,172 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.EmbeddedChatServer;
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ReconnectTest {
+    private static final int RESPONSE_TIMEOUT = 5000;
+
+    private EmbeddedChatServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new EmbeddedChatServer();
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    /**
+     * Test that the delays grow exponentially, stay within the jitter and the maximum
+     */
+    @Test
+    public void testPolicyDelays() {
+        ReconnectPolicy noJitter = new ReconnectPolicy(100, 1000, 2.0, 0, 3);
+        assertEquals(100, noJitter.delayBeforeAttempt(1));
+        assertEquals(200, noJitter.delayBeforeAttempt(2));
+        assertEquals(400, noJitter.delayBeforeAttempt(3));
+        assertEquals(1000, noJitter.delayBeforeAttempt(10));
+        assertTrue(noJitter.mayAttempt(3));
+        assertFalse(noJitter.mayAttempt(4));
+
+        ReconnectPolicy jitter = new ReconnectPolicy(100, 1000, 2.0, 0.5, 0);
+        for (int i = 0; i < 100; i++) {
+            long delay = jitter.delayBeforeAttempt(3);
+            assertTrue(delay >= 200 && delay <= 400);
+        }
+        assertTrue(jitter.mayAttempt(1000));
+    }
+
+    /**
+     * Test that the client connects and logs in again after the connection is lost
+     *
+     * @throws Exception When test is interrupted or a response does not arrive in time
+     */
+    @Test
+    public void testReconnectAndLogin() throws Exception {
+        TCPClient client = new TCPClient();
+        client.setReconnectPolicy(new ReconnectPolicy(50, 200, 2.0, 0.5, 0));
+        ReconnectListener listener = new ReconnectListener();
+        client.addListener(listener);
+        assertTrue(client.connect(server.getHost(), server.getPort()));
+        client.startListenThread();
+        assertTrue(client.loginAsync("reconnect").get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS)
+                .isSuccess());
+
+        server.dropClients();
+        assertTrue(listener.reconnected.await(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(listener.attempts >= 1);
+        assertEquals(0, listener.disconnects);
+        assertEquals(ConnectionState.CONNECTED, client.getMetrics().getState());
+        assertEquals(1, client.getMetrics().getReconnectCount());
+        assertTrue(server.getUsers().contains("reconnect"));
+
+        client.disconnect();
+        assertFalse(client.isReconnecting());
+        assertEquals(1, listener.disconnects);
+    }
+
+    /**
+     * Test that messages sent while reconnecting are sent after logging in again
+     *
+     * @throws Exception When test is interrupted or a response does not arrive in time
+     */
+    @Test
+    public void testReplayUnsent() throws Exception {
+        TCPClient observer = new TCPClient();
+        assertTrue(observer.connect(server.getHost(), server.getPort()));
+        observer.startListenThread();
+        DummyMsgReceiver receiver = new DummyMsgReceiver();
+        observer.addListener(receiver);
+        observer.loginAsync("observer").get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        TCPClient client = new TCPClient();
+        client.setReconnectPolicy(new ReconnectPolicy(300, 300, 1.0, 0, 0));
+        client.setReplayUnsent(true);
+        ReconnectListener listener = new ReconnectListener();
+        client.addListener(listener);
+        assertTrue(client.connect(server.getHost(), server.getPort()));
+        client.startListenThread();
+        client.loginAsync("replay").get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        // Drop the client only, the observer gets a new connection
+        observer.disconnect();
+        server.dropClients();
+        assertTrue(listener.reconnecting.await(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(observer.connect(server.getHost(), server.getPort()));
+        observer.startListenThread();
+        observer.loginAsync("observer").get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        assertTrue(client.isReconnecting());
+        assertTrue(client.sendPublicMessage("held back"));
+        // The message arrives after the login, otherwise the server would not forward it
+        assertTrue(receiver.awaitMessage(new TextMessage("replay", false, "held back"),
+                RESPONSE_TIMEOUT));
+        assertTrue(listener.reconnected.await(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS));
+
+        client.disconnect();
+        observer.disconnect();
+    }
+
+    /**
+     * Test that the client gives up after the allowed number of attempts
+     *
+     * @throws Exception When test is interrupted
+     */
+    @Test
+    public void testGiveUp() throws Exception {
+        TCPClient client = new TCPClient();
+        client.setReconnectPolicy(new ReconnectPolicy(10, 10, 1.0, 0, 2));
+        ReconnectListener listener = new ReconnectListener();
+        client.addListener(listener);
+        assertTrue(client.connect(server.getHost(), server.getPort()));
+        client.startListenThread();
+        assertTrue(server.awaitClientCount(1, RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS));
+
+        server.close();
+        assertTrue(listener.disconnected.await(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(2, listener.attempts);
+        assertFalse(client.isReconnecting());
+        assertFalse(client.isConnectionActive());
+        assertEquals(ConnectionState.DISCONNECTED, client.getMetrics().getState());
+        assertFalse(client.sendPublicMessage("too late"));
+    }
+
+    /**
+     * Counts the reconnect events
+     */
+    private static class ReconnectListener extends EmptyChatListener {
+        final CountDownLatch reconnecting = new CountDownLatch(1);
+        final CountDownLatch reconnected = new CountDownLatch(1);
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        volatile int attempts = 0;
+        volatile int disconnects = 0;
+
+        @Override
+        public void onReconnecting(int attempt, long delayMillis) {
+            attempts = attempt;
+            reconnecting.countDown();
+        }
+
+        @Override
+        public void onReconnected() {
+            reconnected.countDown();
+        }
+
+        @Override
+        public void onDisconnect() {
+            disconnects++;
+            disconnected.countDown();
+        }
+    }
+}
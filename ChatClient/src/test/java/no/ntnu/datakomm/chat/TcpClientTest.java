@@ -4,17 +4,40 @@ import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
 import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
 import no.ntnu.datakomm.chat.helpers.DummySupportedReceiver;
 import no.ntnu.datakomm.chat.helpers.DummyUserListingReceiver;
+import no.ntnu.datakomm.chat.helpers.EmbeddedChatServer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
 
 public class TcpClientTest {
-    // Host and port to be used for all connection in the tests
-    private static final String SERVER_HOST = "datakomm.work";
-    private static final int SERVER_PORT = 1300;
+    // How many ms to wait at most for the response to a request
+    private static final int RESPONSE_TIMEOUT = 5000;
+
+    // Local chat server, started for every test. All connections in the tests go to it
+    private EmbeddedChatServer server;
+    private String serverHost;
+    private int serverPort;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new EmbeddedChatServer();
+        serverHost = server.getHost();
+        serverPort = server.getPort();
+    }
 
-    // How many ms to sleep when waiting for server response to arrive
-    private static final int THREAD_SLEEP_TIME = 2000;
+    @After
+    public void stopServer() {
+        server.close();
+    }
 
     /**
      * Test if opening and closing connection works
@@ -25,22 +48,21 @@ public class TcpClientTest {
         // connection to the right server. That would be a bit difficult to do, although it is doable.
         TCPClient client = new TCPClient();
         assertFalse(client.isConnectionActive());
-        assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(client.connect(serverHost, serverPort));
         assertTrue(client.isConnectionActive());
         client.disconnect();
         assertFalse(client.isConnectionActive());
     }
 
     /**
-     * Test if login works correctly. Note: this test can fail if several students run the same test at the same
-     * time: several clients will try to use the same username.
+     * Test if login works correctly.
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws Exception When test is interrupted or a response does not arrive in time
      */
     @Test
-    public void testLogin() throws InterruptedException {
+    public void testLogin() throws Exception {
         TCPClient client = new TCPClient();
-        assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(client.connect(serverHost, serverPort));
         // The incoming messages will be received on another thread
         client.startListenThread();
         // Listen to how many messages of each type the client receives
@@ -49,10 +71,8 @@ public class TcpClientTest {
         assertEquals(0, counter.loginSuccess);
         assertEquals(0, counter.loginError);
 
-        // Try bad username
-        client.tryLogin("Bad username");
-        // allow the login response (loginerr) to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        // Try bad username and wait for the response
+        client.loginAsync("Bad username").get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
         assertEquals(0, counter.loginSuccess);
         assertEquals(1, counter.loginError);
 
@@ -60,10 +80,8 @@ public class TcpClientTest {
         counter.loginSuccess = 0;
         counter.loginError = 0;
 
-        // Try ok username with letters only
-        client.tryLogin("unittestnormal");
-        // allow the login response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        // Try ok username with letters only and wait for the response
+        client.loginAsync("unittestnormal").get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
         assertEquals(1, counter.loginSuccess);
         assertEquals(0, counter.loginError);
 
@@ -71,10 +89,8 @@ public class TcpClientTest {
         counter.loginSuccess = 0;
         counter.loginError = 0;
 
-        // Try ok username with big and small letters
-        client.tryLogin("UnitTestCamel");
-        // allow the login response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        // Try ok username with big and small letters and wait for the response
+        client.loginAsync("UnitTestCamel").get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
         assertEquals(1, counter.loginSuccess);
         assertEquals(0, counter.loginError);
 
@@ -82,10 +98,8 @@ public class TcpClientTest {
         counter.loginSuccess = 0;
         counter.loginError = 0;
 
-        // Alphanumerics
-        client.tryLogin("UnitTest35Alpha");
-        // allow the login response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        // Try alphanumerics and wait for the response
+        client.loginAsync("UnitTest35Alpha").get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
         assertEquals(1, counter.loginSuccess);
         assertEquals(0, counter.loginError);
         counter.loginSuccess = 0;
@@ -97,7 +111,7 @@ public class TcpClientTest {
     /**
      * Test if sending public messages works
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws InterruptedException When test is interrupted while waiting
      */
     @Test
     public void testPublicMessages() throws InterruptedException {
@@ -105,9 +119,10 @@ public class TcpClientTest {
         TCPClient c1 = new TCPClient();
         TCPClient c2 = new TCPClient();
         TCPClient c3 = new TCPClient();
-        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
-        assertTrue(c2.connect(SERVER_HOST, SERVER_PORT));
-        assertTrue(c3.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(c1.connect(serverHost, serverPort));
+        assertTrue(c2.connect(serverHost, serverPort));
+        assertTrue(c3.connect(serverHost, serverPort));
+        assertTrue(server.awaitClientCount(3, RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS));
 
         // Client 1 logs in with a specific username
         String C1_USERNAME = "UnitTestCC";
@@ -124,12 +139,10 @@ public class TcpClientTest {
         final String MSG_TEXT = "[Unittest] This is a specific text message, please, don't repeat it!";
         c1.sendPublicMessage(MSG_TEXT);
 
-        // Allow the messages to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
-
+        // Wait for the messages to arrive
         TextMessage expectedMsg = new TextMessage(C1_USERNAME, false, MSG_TEXT);
-        assertTrue(rec2.hasReceived(expectedMsg));
-        assertTrue(rec3.hasReceived(expectedMsg));
+        assertTrue(rec2.awaitMessage(expectedMsg, RESPONSE_TIMEOUT));
+        assertTrue(rec3.awaitMessage(expectedMsg, RESPONSE_TIMEOUT));
 
         // Disconnect all clients
         c1.disconnect();
@@ -137,10 +150,90 @@ public class TcpClientTest {
         c3.disconnect();
     }
 
+    /**
+     * Test if public messages work the same when the clients use non-blocking connections on a
+     * shared event loop
+     *
+     * @throws Exception When test is interrupted while waiting
+     */
+    @Test
+    public void testNonBlockingPublicMessages() throws Exception {
+        try (NioEventLoop eventLoop = new NioEventLoop(1)) {
+            TCPClient c1 = new TCPClient(eventLoop);
+            TCPClient c2 = new TCPClient(eventLoop);
+            assertTrue(c1.connect(serverHost, serverPort));
+            assertTrue(c2.connect(serverHost, serverPort));
+            assertTrue(c1.isNonBlocking());
+            assertTrue(server.awaitClientCount(2, RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS));
+
+            DummyMsgReceiver rec2 = new DummyMsgReceiver();
+            c2.addListener(rec2);
+            String C1_USERNAME = "UnitTestNio";
+            assertTrue(c1.loginAsync(C1_USERNAME).get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+
+            final String MSG_TEXT = "[Unittest] Sent over a non-blocking connection";
+            c1.sendPublicMessage(MSG_TEXT);
+            assertTrue(rec2.awaitMessage(new TextMessage(C1_USERNAME, false, MSG_TEXT), RESPONSE_TIMEOUT));
+
+            c1.disconnect();
+            c2.disconnect();
+        }
+    }
+
+    /**
+     * Test that a listener throwing on the shared event loop thread does not affect the other
+     * clients on that thread
+     *
+     * @throws Exception When test is interrupted while waiting
+     */
+    @Test
+    public void testNonBlockingFailingListener() throws Exception {
+        try (NioEventLoop eventLoop = new NioEventLoop(1)) {
+            TCPClient sender = new TCPClient(eventLoop);
+            TCPClient failing = new TCPClient(eventLoop);
+            TCPClient healthy = new TCPClient(eventLoop);
+            assertTrue(sender.connect(serverHost, serverPort));
+            assertTrue(failing.connect(serverHost, serverPort));
+            assertTrue(healthy.connect(serverHost, serverPort));
+            assertTrue(server.awaitClientCount(3, RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS));
+
+            DummyMsgReceiver failingRec = new DummyMsgReceiver() {
+                @Override
+                public synchronized void onMessageReceived(TextMessage message) {
+                    super.onMessageReceived(message);
+                    throw new IllegalStateException("Listener bug");
+                }
+            };
+            failing.addListener(failingRec);
+            DummyResponseCounter healthyCounter = new DummyResponseCounter();
+            DummyMsgReceiver healthyRec = new DummyMsgReceiver();
+            healthy.addListener(healthyRec);
+            healthy.addListener(healthyCounter);
+            assertTrue(sender.loginAsync("UnitTestSender").get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+
+            TextMessage first = new TextMessage("UnitTestSender", false, "first");
+            sender.sendPublicMessage("first");
+            assertTrue(failingRec.awaitMessage(first, RESPONSE_TIMEOUT));
+            assertTrue(healthyRec.awaitMessage(first, RESPONSE_TIMEOUT));
+
+            // The event loop thread is still alive, and both connections are still open
+            TextMessage second = new TextMessage("UnitTestSender", false, "second");
+            sender.sendPublicMessage("second");
+            assertTrue(healthyRec.awaitMessage(second, RESPONSE_TIMEOUT));
+            assertTrue(failingRec.awaitMessage(second, RESPONSE_TIMEOUT));
+            assertEquals(0, healthyCounter.disconn);
+            assertTrue(failing.isConnectionActive());
+
+            sender.disconnect();
+            failing.disconnect();
+            healthy.disconnect();
+        }
+    }
+
     /**
      * Test if sending private messages works.
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws InterruptedException When test is interrupted while waiting
      */
     @Test
     public void testPrivateMessages() throws InterruptedException {
@@ -148,9 +241,9 @@ public class TcpClientTest {
         TCPClient c1 = new TCPClient();
         TCPClient c2 = new TCPClient();
         TCPClient c3 = new TCPClient();
-        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
-        assertTrue(c2.connect(SERVER_HOST, SERVER_PORT));
-        assertTrue(c3.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(c1.connect(serverHost, serverPort));
+        assertTrue(c2.connect(serverHost, serverPort));
+        assertTrue(c3.connect(serverHost, serverPort));
 
         // Clients log in with specific usernames
         String C1_USERNAME = "UnitTestC1";
@@ -159,6 +252,9 @@ public class TcpClientTest {
         c1.tryLogin(C1_USERNAME);
         c2.tryLogin(C2_USERNAME);
         c3.tryLogin(C3_USERNAME);
+        assertTrue(server.awaitLogin(C1_USERNAME, RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(server.awaitLogin(C2_USERNAME, RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(server.awaitLogin(C3_USERNAME, RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS));
 
         // Clients will listen for incoming messages, each on a different CPU thread
         c1.startListenThread();
@@ -175,12 +271,10 @@ public class TcpClientTest {
         // Send to Client #2 only
         c1.sendPrivateMessage(C2_USERNAME, MSG_TEXT);
 
-        // Allow the message to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
-
+        // Wait for the message to arrive
         TextMessage expectedMsg = new TextMessage(C1_USERNAME, true, MSG_TEXT);
+        assertTrue(rec2.awaitMessage(expectedMsg, RESPONSE_TIMEOUT));
         assertFalse(rec1.hasReceived(expectedMsg));
-        assertTrue(rec2.hasReceived(expectedMsg));
         assertFalse(rec3.hasReceived(expectedMsg));
 
         rec1.clearMessages();
@@ -191,13 +285,11 @@ public class TcpClientTest {
         MSG_TEXT = "[Unittest3] This is a specific text message, please, don't repeat it!";
         c2.sendPrivateMessage(C3_USERNAME, MSG_TEXT);
 
-        // Allow the message to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
-
+        // Wait for the message to arrive
         expectedMsg = new TextMessage(C2_USERNAME, true, MSG_TEXT);
+        assertTrue(rec3.awaitMessage(expectedMsg, RESPONSE_TIMEOUT));
         assertFalse(rec1.hasReceived(expectedMsg));
         assertFalse(rec2.hasReceived(expectedMsg));
-        assertTrue(rec3.hasReceived(expectedMsg));
 
         // Disconnect all clients
         c1.disconnect();
@@ -217,44 +309,41 @@ public class TcpClientTest {
     /**
      * Test if user listing works correctly.
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws Exception When test is interrupted or a response does not arrive in time
      */
     @Test
-    public void testUserListing() throws InterruptedException {
+    public void testUserListing() throws Exception {
         // Create three clients. One sends message to another. Third one should not receive.
         TCPClient c1 = new TCPClient();
         TCPClient c2 = new TCPClient();
         TCPClient c3 = new TCPClient();
-        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
-        assertTrue(c2.connect(SERVER_HOST, SERVER_PORT));
-        assertTrue(c3.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(c1.connect(serverHost, serverPort));
+        assertTrue(c2.connect(serverHost, serverPort));
+        assertTrue(c3.connect(serverHost, serverPort));
 
 
         // The incoming messages will be received on another thread
         c1.startListenThread();
+        c2.startListenThread();
+        c3.startListenThread();
 
         // Listen to user listing.
         DummyUserListingReceiver userListing = new DummyUserListingReceiver();
         c1.addListener(userListing);
 
         // Clients log in with specific usernames
-        // Get some randomness added to the usernames
-        int rand = (int) (Math.random() * 10000);
-        String C1_USERNAME = "UnitTestC1" + rand;
-        String C2_USERNAME = "UnitTestC2" + rand;
-        String C3_USERNAME = "UnitTestC3" + rand;
-        c1.tryLogin(C1_USERNAME);
-        c2.tryLogin(C2_USERNAME);
-        c3.tryLogin(C3_USERNAME);
-
-        // Allow the login to happen
-        Thread.sleep(THREAD_SLEEP_TIME);
-
-        // Try to get user listing
-        c1.refreshUserList();
+        String C1_USERNAME = "UnitTestC1";
+        String C2_USERNAME = "UnitTestC2";
+        String C3_USERNAME = "UnitTestC3";
+        // Send all the logins, then wait for all of them to complete
+        CompletableFuture<LoginResult> login1 = c1.loginAsync(C1_USERNAME);
+        CompletableFuture<LoginResult> login2 = c2.loginAsync(C2_USERNAME);
+        CompletableFuture<LoginResult> login3 = c3.loginAsync(C3_USERNAME);
+        CompletableFuture.allOf(login1, login2, login3).get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
 
-        // Allow the user listing response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        // Try to get user listing and wait for the response
+        List<String> users = c1.usersAsync().get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(users.contains(C1_USERNAME));
 
         // We should get all the users listed in a single message and it should contain all the three client names
         assertTrue(userListing.getCount() >= 3);
@@ -268,16 +357,95 @@ public class TcpClientTest {
         c3.disconnect();
     }
 
+    /**
+     * Test that requests sent without waiting for each other get their own responses
+     *
+     * @throws Exception When test is interrupted or a response does not arrive in time
+     */
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        TCPClient client = new TCPClient();
+        assertTrue(client.connect(serverHost, serverPort));
+        client.startListenThread();
+
+        CompletableFuture<LoginResult> badLogin = client.loginAsync("Bad username");
+        CompletableFuture<List<String>> usersBefore = client.usersAsync();
+        CompletableFuture<LoginResult> login = client.loginAsync("UnitTestPipe");
+        CompletableFuture<List<String>> supported = client.supportedCommandsAsync();
+        CompletableFuture<List<String>> usersAfter = client.usersAsync();
+
+        assertFalse(badLogin.get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+        assertFalse(usersBefore.get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS).contains("UnitTestPipe"));
+        assertTrue(login.get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+        assertTrue(supported.get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS).contains("privmsg"));
+        assertTrue(usersAfter.get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS).contains("UnitTestPipe"));
+
+        client.disconnect();
+    }
+
+    /**
+     * Test that a cmderr fails the request it answers, and not a later one
+     *
+     * @throws Exception When test is interrupted or a response does not arrive in time
+     */
+    @Test
+    public void testCommandErrorFailsRequest() throws Exception {
+        server.setRequireLogin(true);
+        TCPClient client = new TCPClient();
+        assertTrue(client.connect(serverHost, serverPort));
+        client.startListenThread();
+        DummyResponseCounter counter = new DummyResponseCounter();
+        client.addListener(counter);
+
+        CompletableFuture<List<String>> unauthorized = client.usersAsync();
+        CompletableFuture<LoginResult> login = client.loginAsync("UnitTestCmdErr");
+        CompletableFuture<List<String>> users = client.usersAsync();
+        try {
+            unauthorized.get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("A request answered with cmderr must fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("unauthorized"));
+        }
+        assertTrue(login.get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+        assertEquals(List.of("UnitTestCmdErr"), users.get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(1, counter.cmdErr);
+
+        client.disconnect();
+    }
+
+    /**
+     * Test that a request without a response fails after the request timeout
+     *
+     * @throws Exception When the silent server can't be started or the test is interrupted
+     */
+    @Test
+    public void testRequestTimeout() throws Exception {
+        // Accepts connections in the backlog, but never answers
+        try (ServerSocket silent = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            TCPClient client = new TCPClient();
+            client.setRequestTimeout(100);
+            assertTrue(client.connect(silent.getInetAddress().getHostAddress(), silent.getLocalPort()));
+            client.startListenThread();
+            try {
+                client.usersAsync().get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
+                fail("The request must time out");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+            client.disconnect();
+        }
+    }
+
     /**
      * Test if supported command listing works correctly.
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws Exception When test is interrupted or a response does not arrive in time
      */
     @Test
-    public void testSupportedCommands() throws InterruptedException {
+    public void testSupportedCommands() throws Exception {
         // Create a TCP chat client.
         TCPClient c1 = new TCPClient();
-        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(c1.connect(serverHost, serverPort));
 
         // The incoming messages will be received on another thread
         c1.startListenThread();
@@ -286,11 +454,8 @@ public class TcpClientTest {
         DummySupportedReceiver supported = new DummySupportedReceiver();
         c1.addListener(supported);
 
-        // Try to get supported command listing
-        c1.askSupportedCommands();
-
-        // Allow the listing response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        // Try to get supported command listing and wait for the response
+        c1.supportedCommandsAsync().get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
 
         // We should get all the users listed in a single message and it should contain all the three client names
         assertTrue(supported.contains("msg"));
@@ -0,0 +1,51 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TextMessageTest {
+
+    /**
+     * Test that equals compares the fields, and that compact and normal messages with the same
+     * content are equal
+     */
+    @Test
+    public void testEquals() {
+        TextMessage msg = new TextMessage("alice", false, "Hello");
+        assertEquals(msg, new TextMessage("alice", false, "Hello"));
+        assertNotEquals(msg, new TextMessage("alice", true, "Hello"));
+        assertNotEquals(msg, new TextMessage("bob", false, "Hello"));
+        assertNotEquals(msg, new TextMessage("alice", false, "Hello!"));
+        assertNotEquals(msg, "alice: Hello");
+        assertNotEquals(msg, null);
+
+        for (String text : new String[]{"Hello", "Hei på deg", "你好 😀", ""}) {
+            TextMessage normal = new TextMessage("bjørn", true, text);
+            TextMessage compact = TextMessage.compact("bjørn", true, text);
+            assertTrue(compact.isCompact());
+            assertFalse(normal.isCompact());
+            assertEquals(text, compact.getText());
+            assertEquals(normal, compact);
+            assertEquals(compact, normal);
+            assertEquals(normal.hashCode(), compact.hashCode());
+            assertEquals(compact, normal.toCompact());
+            assertEquals(compact, TextMessage.compactUtf8("bjørn", true,
+                    text.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * Test that messages of one sender share the sender name
+     */
+    @Test
+    public void testSenderPool() {
+        TextMessage first = new TextMessage(new String("carol"), false, "one");
+        TextMessage second = new TextMessage(new String("carol"), false, "two");
+        assertSame(first.getSender(), second.getSender());
+
+        byte[] line = "xx carol yy".getBytes(StandardCharsets.UTF_8);
+        assertSame(first.getSender(), SenderPool.intern(line, 3, 5, new LineCodec()));
+    }
+}
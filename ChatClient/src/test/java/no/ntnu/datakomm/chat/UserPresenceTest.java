@@ -0,0 +1,50 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class UserPresenceTest {
+
+    /**
+     * Test that joins and leaves are computed between successive user lists
+     */
+    @Test
+    public void testDelta() {
+        UserPresence presence = new UserPresence();
+        UserPresence.Change change = presence.update(new String[]{"alice", "bob"});
+        assertEquals(List.of("alice", "bob"), change.getJoined());
+        assertTrue(change.getLeft().isEmpty());
+
+        change = presence.update(new String[]{"bob", "carol"});
+        assertEquals(List.of("carol"), change.getJoined());
+        assertEquals(List.of("alice"), change.getLeft());
+        assertEquals(List.of("bob", "carol"), presence.getUsers());
+
+        change = presence.clear();
+        assertEquals(List.of("bob", "carol"), change.getLeft());
+        assertTrue(presence.getUsers().isEmpty());
+    }
+
+    /**
+     * Test that polling backs off while nothing changes and speeds up again after a change
+     */
+    @Test
+    public void testAdaptivePolling() {
+        UserPresence presence = new UserPresence();
+        presence.update(new String[]{"alice"});
+        assertEquals(UserPresence.MIN_POLL_INTERVAL, presence.nextPollInterval());
+        for (int i = 0; i < 10; i++) {
+            presence.update(new String[]{"alice"});
+        }
+        assertEquals(UserPresence.MAX_POLL_INTERVAL, presence.nextPollInterval());
+        presence.update(new String[]{"alice", "bob"});
+        assertEquals(UserPresence.MIN_POLL_INTERVAL, presence.nextPollInterval());
+
+        // Once the server pushes changes, polling is only a slow fallback
+        assertTrue(presence.left("alice").getLeft().contains("alice"));
+        assertTrue(presence.isPushActive());
+        assertEquals(UserPresence.MAX_POLL_INTERVAL, presence.nextPollInterval());
+    }
+}
@@ -6,7 +6,7 @@ import no.ntnu.datakomm.chat.TextMessage;
 
 /**
  * Receive and buffer messages. We can check whether a message from specific
- * sender with specific text was received.
+ * sender with specific text was received, or wait until it is.
  */
 public class DummyMsgReceiver extends EmptyChatListener {
 
@@ -14,12 +14,13 @@ public class DummyMsgReceiver extends EmptyChatListener {
     private String msgError = null;
 
     @Override
-    public void onMessageReceived(TextMessage message) {
+    public synchronized void onMessageReceived(TextMessage message) {
         messages.add(message);
+        notifyAll();
     }
 
     @Override
-    public void onMessageError(String errMsg) {
+    public synchronized void onMessageError(String errMsg) {
         msgError = errMsg;
     }
 
@@ -29,14 +30,14 @@ public class DummyMsgReceiver extends EmptyChatListener {
      *
      * @return
      */
-    public String getMsgError() {
+    public synchronized String getMsgError() {
         return msgError;
     }
 
     /**
      * Delete all buffered messages
      */
-    public void clearMessages() {
+    public synchronized void clearMessages() {
         messages.clear();
     }
 
@@ -46,11 +47,31 @@ public class DummyMsgReceiver extends EmptyChatListener {
      * @param msg
      * @return
      */
-    public boolean hasReceived(TextMessage msg) {
+    public synchronized boolean hasReceived(TextMessage msg) {
         // return messages.contains(msg);
         for (TextMessage m : messages) {
             if (m.equals(msg)) return true;
         }
         return false;
     }
+
+    /**
+     * Wait until the given message has been received by this listener
+     *
+     * @param msg
+     * @param timeout Maximum time to wait, in milliseconds
+     * @return True when the message was received, false on timeout
+     * @throws InterruptedException
+     */
+    public synchronized boolean awaitMessage(TextMessage msg, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!hasReceived(msg)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
 }
@@ -0,0 +1,434 @@
+package no.ntnu.datakomm.chat.helpers;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Pattern;
+import no.ntnu.datakomm.chat.ChatThreads;
+
+/**
+ * A chat server running inside the test process, speaking the same protocol as the course server:
+ * login/loginok/loginerr, msg, privmsg/msgerr, users, help/supported and cmderr. It listens on
+ * an ephemeral port of the loopback interface, so tests don't need network access and don't
+ * share usernames with other test runs. Every client gets its own thread.
+ *
+ * The await methods let a test wait for the server to reach a certain state instead of sleeping
+ * for a fixed time.
+ */
+public class EmbeddedChatServer implements Closeable {
+    public static final String SUPPORTED_COMMANDS = "login msg privmsg users help";
+    // Number of received command lines remembered for awaitReceived()
+    private static final int RECEIVED_HISTORY = 1000;
+    private static final Pattern VALID_USERNAME = Pattern.compile("[A-Za-z0-9]+");
+
+    private final ServerSocket serverSocket;
+    private final ThreadFactory threadFactory =
+            ChatThreads.platformFactory("embedded-chat-server", true);
+    // All guarded by this
+    private final Set<Session> sessions = new HashSet<>();
+    private final Map<String, Session> users = new LinkedHashMap<>();
+    private final Deque<String> received = new ArrayDeque<>();
+    private long receivedCount = 0;
+    private boolean pushPresence = false;
+    private boolean requireLogin = false;
+    private volatile boolean running = true;
+
+    /**
+     * Start a server on an ephemeral port of the loopback interface.
+     *
+     * @throws IOException When the server socket can't be opened
+     */
+    public EmbeddedChatServer() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        threadFactory.newThread(this::acceptClients).start();
+    }
+
+    /**
+     * @return Host name to connect to
+     */
+    public String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+    /**
+     * @return Port the server listens on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Send "joined" and "left" to the other clients when a user logs in or disconnects. The
+     * course server doesn't do this, so it is off by default.
+     *
+     * @param pushPresence When true, presence changes are pushed
+     */
+    public synchronized void setPushPresence(boolean pushPresence) {
+        this.pushPresence = pushPresence;
+    }
+
+    /**
+     * Answer "users" and "help" with a cmderr until the client has logged in.
+     *
+     * @param requireLogin When true, users and help need a login
+     */
+    public synchronized void setRequireLogin(boolean requireLogin) {
+        this.requireLogin = requireLogin;
+    }
+
+    /**
+     * @return true if the session must log in before asking for users or help
+     */
+    private synchronized boolean isUnauthorized(Session session) {
+        return requireLogin && session.username == null;
+    }
+
+    /**
+     * @return Number of connected clients
+     */
+    public synchronized int getClientCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return Usernames of the logged-in clients, in login order
+     */
+    public synchronized List<String> getUsers() {
+        return new ArrayList<>(users.keySet());
+    }
+
+    /**
+     * @return Number of command lines received from all clients
+     */
+    public synchronized long getReceivedCount() {
+        return receivedCount;
+    }
+
+    /**
+     * Wait until at least the given number of clients are connected.
+     *
+     * @return True when the clients are connected, false on timeout
+     * @throws InterruptedException When interrupted while waiting
+     */
+    public boolean awaitClientCount(int count, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return await(() -> sessions.size() >= count, timeout, unit);
+    }
+
+    /**
+     * Wait until a client is logged in with the given username.
+     *
+     * @return True when the user is logged in, false on timeout
+     * @throws InterruptedException When interrupted while waiting
+     */
+    public boolean awaitLogin(String username, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return await(() -> users.containsKey(username), timeout, unit);
+    }
+
+    /**
+     * Wait until a client has sent the given command line. The last received lines are
+     * remembered, so the line may also have arrived before this method is called.
+     *
+     * @param command The whole command line, for example "msg Hello"
+     * @return True when the command was received, false on timeout
+     * @throws InterruptedException When interrupted while waiting
+     */
+    public boolean awaitReceived(String command, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return await(() -> received.contains(command), timeout, unit);
+    }
+
+    /**
+     * Wait until a condition on the server state is true. The condition is checked while
+     * holding the server lock.
+     */
+    private synchronized boolean await(BooleanSupplier condition, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!condition.getAsBoolean()) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Close all client connections but keep accepting new ones, as if the network between the
+     * clients and the server had failed.
+     */
+    public void dropClients() {
+        List<Session> open;
+        synchronized (this) {
+            open = new ArrayList<>(sessions);
+        }
+        for (Session session : open) {
+            session.close();
+        }
+    }
+
+    /**
+     * Stop the server and close all client connections.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        List<Session> open;
+        synchronized (this) {
+            open = new ArrayList<>(sessions);
+        }
+        for (Session session : open) {
+            session.close();
+        }
+    }
+
+    private void acceptClients() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                Session session = new Session(socket);
+                synchronized (this) {
+                    sessions.add(session);
+                    notifyAll();
+                }
+                if (!running) {
+                    // Accepted while close() was running, which may have missed it
+                    session.close();
+                }
+                threadFactory.newThread(session).start();
+            } catch (IOException e) {
+                // The server socket is closed
+                return;
+            }
+        }
+    }
+
+    /**
+     * Handle one command line from a client
+     */
+    private void handleCommand(Session session, String line) {
+        synchronized (this) {
+            received.addLast(line);
+            if (received.size() > RECEIVED_HISTORY) {
+                received.removeFirst();
+            }
+            receivedCount++;
+            notifyAll();
+        }
+        int space = line.indexOf(' ');
+        String command = space < 0 ? line : line.substring(0, space);
+        String argument = space < 0 ? "" : line.substring(space + 1);
+        if ((command.equals("users") || command.equals("help")) && isUnauthorized(session)) {
+            session.send("cmderr unauthorized");
+            return;
+        }
+        switch (command) {
+            case "login":
+                login(session, argument);
+                break;
+            case "msg":
+                broadcast(session, argument);
+                break;
+            case "privmsg":
+                sendPrivate(session, argument);
+                break;
+            case "users":
+                session.send("users " + String.join(" ", getUsers()));
+                break;
+            case "help":
+                session.send("supported " + SUPPORTED_COMMANDS);
+                break;
+            default:
+                session.send("cmderr command not supported");
+                break;
+        }
+    }
+
+    private void login(Session session, String username) {
+        if (!VALID_USERNAME.matcher(username).matches()) {
+            session.send("loginerr incorrect username format");
+            return;
+        }
+        String previous;
+        List<Session> others;
+        synchronized (this) {
+            Session owner = users.get(username);
+            if (owner != null && owner != session) {
+                others = null;
+                previous = null;
+            } else {
+                previous = session.username;
+                if (previous != null) {
+                    users.remove(previous);
+                }
+                session.username = username;
+                users.put(username, session);
+                others = pushPresence ? othersThan(session) : List.of();
+                notifyAll();
+            }
+        }
+        if (others == null) {
+            session.send("loginerr username already in use");
+            return;
+        }
+        session.send("loginok");
+        if (!username.equals(previous)) {
+            if (previous != null) {
+                sendAll(others, "left " + previous);
+            }
+            sendAll(others, "joined " + username);
+        }
+    }
+
+    /**
+     * Send a public message to every other connected client, logged in or not
+     */
+    private void broadcast(Session sender, String text) {
+        String senderName;
+        List<Session> targets;
+        synchronized (this) {
+            senderName = sender.username;
+            targets = othersThan(sender);
+        }
+        if (senderName == null) {
+            sender.send("msgerr unauthorized");
+            return;
+        }
+        sendAll(targets, "msg " + senderName + " " + text);
+    }
+
+    private void sendPrivate(Session sender, String argument) {
+        int space = argument.indexOf(' ');
+        String recipient = space < 0 ? argument : argument.substring(0, space);
+        String text = space < 0 ? "" : argument.substring(space + 1);
+        String senderName;
+        Session target;
+        synchronized (this) {
+            senderName = sender.username;
+            target = users.get(recipient);
+        }
+        if (senderName == null) {
+            sender.send("msgerr unauthorized");
+        } else if (target == null) {
+            sender.send("msgerr incorrect recipient " + recipient);
+        } else {
+            target.send("privmsg " + senderName + " " + text);
+        }
+    }
+
+    /**
+     * Forget a client that has disconnected
+     */
+    private void remove(Session session) {
+        List<Session> others;
+        String username;
+        synchronized (this) {
+            if (!sessions.remove(session)) {
+                return;
+            }
+            username = session.username;
+            if (username != null) {
+                users.remove(username);
+            }
+            others = pushPresence && username != null ? othersThan(session) : List.of();
+            notifyAll();
+        }
+        sendAll(others, "left " + username);
+    }
+
+    /**
+     * Must be called while holding the server lock
+     */
+    private List<Session> othersThan(Session session) {
+        List<Session> others = new ArrayList<>(sessions);
+        others.remove(session);
+        return others;
+    }
+
+    private static void sendAll(Collection<Session> targets, String line) {
+        for (Session target : targets) {
+            target.send(line);
+        }
+    }
+
+    /**
+     * One connected client
+     */
+    private class Session implements Runnable {
+        private final Socket socket;
+        private final OutputStream out;
+        // Guarded by the server lock
+        private String username;
+
+        Session(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+        }
+
+        @Override
+        public void run() {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        handleCommand(this, line);
+                    }
+                }
+            } catch (IOException e) {
+                // Connection closed or broken
+            } finally {
+                close();
+                remove(this);
+            }
+        }
+
+        /**
+         * Send one line to the client. Lines sent from different threads don't mix.
+         */
+        synchronized void send(String line) {
+            try {
+                out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+}
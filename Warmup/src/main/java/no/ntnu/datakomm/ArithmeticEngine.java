@@ -0,0 +1,87 @@
+package no.ntnu.datakomm;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Answers arithmetic requests. Parsed expressions are kept in a bounded LRU cache, so a request
+ * that was seen recently is evaluated without parsing it again. Invalid requests are cached too,
+ * as they tend to be repeated just as often. Safe to use from many threads.
+ */
+public class ArithmeticEngine {
+    // Response to a request that is not a valid expression, or can't be computed
+    public static final String ERROR_RESPONSE = "error";
+
+    private final Map<String, Expression> cache;
+    private long cacheHits = 0;
+    private long cacheMisses = 0;
+
+    /**
+     * @param cacheSize Maximum number of parsed expressions kept in the cache
+     */
+    public ArithmeticEngine(int cacheSize) {
+        if (cacheSize < 1) {
+            throw new IllegalArgumentException("cacheSize must be at least 1");
+        }
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Expression> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Compute the answer to one request.
+     *
+     * @param request The arithmetic expression, for example "3+4"
+     * @return The result, or ERROR_RESPONSE when the request is not a valid expression or
+     * divides by zero
+     */
+    public String evaluate(String request) {
+        try {
+            return compile(request).evaluateToString();
+        } catch (IllegalArgumentException | ArithmeticException e) {
+            return ERROR_RESPONSE;
+        }
+    }
+
+    /**
+     * @return Number of requests served from the cache
+     */
+    public synchronized long getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * @return Number of requests that had to be parsed
+     */
+    public synchronized long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    /**
+     * Get the parsed expression from the cache, or parse it and add it to the cache.
+     */
+    private Expression compile(String request) {
+        synchronized (this) {
+            Expression expression = cache.get(request);
+            if (expression != null) {
+                cacheHits++;
+                return expression;
+            }
+            cacheMisses++;
+        }
+        // Parse outside the lock, other threads can use the cache meanwhile
+        Expression expression;
+        try {
+            expression = ExpressionParser.parse(request);
+        } catch (IllegalArgumentException e) {
+            expression = Expression.invalid(e.getMessage());
+        }
+        synchronized (this) {
+            cache.put(request, expression);
+        }
+        return expression;
+    }
+}
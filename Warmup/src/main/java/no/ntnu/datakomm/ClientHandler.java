@@ -3,36 +3,93 @@ package no.ntnu.datakomm;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+public class ClientHandler implements Runnable {
+  // Request that ends the conversation
+  static final String GAME_OVER = "game over";
+  // A connection without any request for this long is closed (milliseconds)
+  static final int IDLE_TIMEOUT = Integer.getInteger("server.idleTimeout", 60000);
+  // Computes the answers, shared by all the connections so that they share the expression cache
+  private static final ArithmeticEngine ENGINE =
+      new ArithmeticEngine(Integer.getInteger("server.expressionCacheSize", 1024));
+  // Print every request, unless the server.logRequests system property is false
+  private static final boolean LOG_REQUESTS =
+      Boolean.parseBoolean(System.getProperty("server.logRequests", "true"));
 
-public class ClientHandler extends Thread{
   private final Socket clientSocket;
 
   public  ClientHandler(Socket clientSocket) {
     this.clientSocket = clientSocket;
   }
 
+  /**
+   * Serve requests on the connection until the client says "game over", closes the connection,
+   * or stays idle for longer than IDLE_TIMEOUT. One response line is sent per request line.
+   */
   @Override
   public void run() {
 
     try{
-      InputStreamReader reader = new InputStreamReader(clientSocket.getInputStream());
+      clientSocket.setKeepAlive(true);
+      clientSocket.setSoTimeout(IDLE_TIMEOUT);
+      // The protocol is UTF-8, whatever the default charset of the host is
+      InputStreamReader reader = new InputStreamReader(clientSocket.getInputStream(),
+          StandardCharsets.UTF_8);
       BufferedReader bufferedReader = new BufferedReader(reader);
-      PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(),true);
-
-      String clientInput = bufferedReader.readLine();
-      System.out.println("Client sent: " + clientInput);
-      String[] parts = clientInput.split(" ");
-
-      String response = "Sorry, no math questions...";
-
-
-      writer.println(response);
+      PrintWriter writer = new PrintWriter(new OutputStreamWriter(clientSocket.getOutputStream(),
+          StandardCharsets.UTF_8), true);
 
-      clientSocket.close();
+      String clientInput;
+      while ((clientInput = bufferedReader.readLine()) != null) {
+        if (clientInput.isEmpty()) {
+          // Empty lines are not requests
+          continue;
+        }
+        if (clientInput.equals(GAME_OVER)) {
+          break;
+        }
+        writer.println(createResponse(clientInput));
+      }
+    }catch (SocketTimeoutException e){
+      System.out.println("Closing idle connection from " + clientSocket.getRemoteSocketAddress());
     }catch (IOException e){
       e.printStackTrace();
+    }finally {
+      try {
+        clientSocket.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Create the response to one request: the result of the arithmetic expression, or "error".
+   * Shared by all the server variants, so that they behave the same.
+   *
+   * @param clientInput The request line received from the client
+   * @return The response line to send back
+   */
+  static String createResponse(String clientInput) {
+    return createResponse(clientInput, LOG_REQUESTS);
+  }
+
+  /**
+   * Create the response to one request, see createResponse(String).
+   *
+   * @param clientInput The request line received from the client
+   * @param log         When true, the request is printed
+   * @return The response line to send back
+   */
+  static String createResponse(String clientInput, boolean log) {
+    if (log) {
+      System.out.println("Client sent: " + clientInput);
     }
+    return ENGINE.evaluate(clientInput);
   }
-}
\ No newline at end of file
+}
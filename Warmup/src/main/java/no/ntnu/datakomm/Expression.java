@@ -0,0 +1,182 @@
+package no.ntnu.datakomm;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * A parsed arithmetic expression: a tree of numbers and the operators +, -, * and /. Created by
+ * ExpressionParser. The tree is immutable, so one instance can be evaluated by many threads.
+ *
+ * Expressions that only use whole numbers and +, - and * are computed with long arithmetic. When
+ * that overflows, or when the expression contains a division or a decimal number, BigDecimal is
+ * used instead.
+ */
+abstract class Expression {
+    // Precision of divisions that don't give an exact result
+    private static final MathContext DIVISION_PRECISION = MathContext.DECIMAL64;
+
+    // True when the value can be computed with long arithmetic
+    private final boolean integral;
+
+    private Expression(boolean integral) {
+        this.integral = integral;
+    }
+
+    /**
+     * Compute the value of the expression.
+     *
+     * @return The value, formatted without exponent and trailing zeros
+     * @throws ArithmeticException On division by zero
+     */
+    String evaluateToString() {
+        if (integral) {
+            try {
+                return Long.toString(evaluateLong());
+            } catch (ArithmeticException overflow) {
+                // Continue with BigDecimal
+            }
+        }
+        BigDecimal value = evaluate();
+        return value.signum() == 0 ? "0" : value.stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * @return The value of the expression
+     * @throws ArithmeticException On division by zero
+     */
+    abstract BigDecimal evaluate();
+
+    /**
+     * Only for integral expressions.
+     *
+     * @return The value of the expression
+     * @throws ArithmeticException On overflow
+     */
+    abstract long evaluateLong();
+
+    static Expression number(String digits) {
+        return new Number(new BigDecimal(digits));
+    }
+
+    static Expression negate(Expression operand) {
+        return new Negate(operand);
+    }
+
+    static Expression binary(char operator, Expression left, Expression right) {
+        return new Binary(operator, left, right);
+    }
+
+    /**
+     * @param reason Why the request could not be parsed
+     * @return An expression whose evaluation fails with an IllegalArgumentException, so that
+     * invalid requests can be cached like valid ones
+     */
+    static Expression invalid(String reason) {
+        return new Invalid(reason);
+    }
+
+    private static class Number extends Expression {
+        private final BigDecimal value;
+        private final long longValue;
+
+        Number(BigDecimal value) {
+            super(value.scale() <= 0 && value.compareTo(BigDecimal.valueOf(Long.MAX_VALUE)) <= 0);
+            this.value = value;
+            this.longValue = value.longValue();
+        }
+
+        @Override
+        BigDecimal evaluate() {
+            return value;
+        }
+
+        @Override
+        long evaluateLong() {
+            return longValue;
+        }
+    }
+
+    private static class Negate extends Expression {
+        private final Expression operand;
+
+        Negate(Expression operand) {
+            super(operand.integral);
+            this.operand = operand;
+        }
+
+        @Override
+        BigDecimal evaluate() {
+            return operand.evaluate().negate();
+        }
+
+        @Override
+        long evaluateLong() {
+            return Math.negateExact(operand.evaluateLong());
+        }
+    }
+
+    private static class Invalid extends Expression {
+        private final String reason;
+
+        Invalid(String reason) {
+            super(false);
+            this.reason = reason;
+        }
+
+        @Override
+        BigDecimal evaluate() {
+            throw new IllegalArgumentException(reason);
+        }
+
+        @Override
+        long evaluateLong() {
+            throw new IllegalArgumentException(reason);
+        }
+    }
+
+    private static class Binary extends Expression {
+        private final char operator;
+        private final Expression left;
+        private final Expression right;
+
+        Binary(char operator, Expression left, Expression right) {
+            super(operator != '/' && left.integral && right.integral);
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        BigDecimal evaluate() {
+            BigDecimal a = left.evaluate();
+            BigDecimal b = right.evaluate();
+            switch (operator) {
+                case '+':
+                    return a.add(b);
+                case '-':
+                    return a.subtract(b);
+                case '*':
+                    return a.multiply(b);
+                default:
+                    if (b.signum() == 0) {
+                        throw new ArithmeticException("Division by zero");
+                    }
+                    return a.divide(b, DIVISION_PRECISION);
+            }
+        }
+
+        @Override
+        long evaluateLong() {
+            long a = left.evaluateLong();
+            long b = right.evaluateLong();
+            switch (operator) {
+                case '+':
+                    return Math.addExact(a, b);
+                case '-':
+                    return Math.subtractExact(a, b);
+                default:
+                    return Math.multiplyExact(a, b);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package no.ntnu.datakomm;
+
+/**
+ * Tokenizer and recursive-descent parser for arithmetic requests such as "3+4" or
+ * "(2 - 5) * 1.5 / 3". Grammar:
+ *
+ * <pre>
+ * expression = term { ("+" | "-") term }
+ * term       = factor { ("*" | "/") factor }
+ * factor     = ("+" | "-") factor | number | "(" expression ")"
+ * number     = digit { digit } [ "." digit { digit } ]
+ * </pre>
+ *
+ * Whitespace between tokens is ignored. A parser is used for one expression only.
+ */
+class ExpressionParser {
+    // Limits the recursion, so that "((((..." can't overflow the stack
+    private static final int MAX_NESTING = 100;
+
+    private final String input;
+    private int pos = 0;
+    private int nesting = 0;
+
+    private ExpressionParser(String input) {
+        this.input = input;
+    }
+
+    /**
+     * Parse an arithmetic expression.
+     *
+     * @param input The expression
+     * @return The parsed expression
+     * @throws IllegalArgumentException When the input is not a valid expression
+     */
+    static Expression parse(String input) {
+        ExpressionParser parser = new ExpressionParser(input);
+        Expression expression = parser.expression();
+        if (parser.peek() != 0) {
+            throw parser.error("Unexpected '" + parser.peek() + "'");
+        }
+        return expression;
+    }
+
+    private Expression expression() {
+        Expression result = term();
+        char c;
+        while ((c = peek()) == '+' || c == '-') {
+            pos++;
+            result = Expression.binary(c, result, term());
+        }
+        return result;
+    }
+
+    private Expression term() {
+        Expression result = factor();
+        char c;
+        while ((c = peek()) == '*' || c == '/') {
+            pos++;
+            result = Expression.binary(c, result, factor());
+        }
+        return result;
+    }
+
+    private Expression factor() {
+        if (++nesting > MAX_NESTING) {
+            throw error("Expression nested too deep");
+        }
+        Expression result;
+        char c = peek();
+        if (c == '-' || c == '+') {
+            pos++;
+            Expression operand = factor();
+            result = c == '-' ? Expression.negate(operand) : operand;
+        } else if (c == '(') {
+            pos++;
+            result = expression();
+            if (peek() != ')') {
+                throw error("Missing ')'");
+            }
+            pos++;
+        } else if (isDigit(c)) {
+            result = number();
+        } else {
+            throw error(c == 0 ? "Unexpected end of expression" : "Unexpected '" + c + "'");
+        }
+        nesting--;
+        return result;
+    }
+
+    private Expression number() {
+        int start = pos;
+        skipDigits();
+        if (pos < input.length() && input.charAt(pos) == '.') {
+            pos++;
+            if (!isDigit(peekRaw())) {
+                throw error("Digit expected after '.'");
+            }
+            skipDigits();
+        }
+        return Expression.number(input.substring(start, pos));
+    }
+
+    private void skipDigits() {
+        while (isDigit(peekRaw())) {
+            pos++;
+        }
+    }
+
+    /**
+     * @return The next character that is not whitespace, 0 at the end of the input
+     */
+    private char peek() {
+        while (pos < input.length() && Character.isWhitespace(input.charAt(pos))) {
+            pos++;
+        }
+        return peekRaw();
+    }
+
+    private char peekRaw() {
+        return pos < input.length() ? input.charAt(pos) : 0;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + pos);
+    }
+}
@@ -0,0 +1,123 @@
+package no.ntnu.datakomm;
+
+/**
+ * Records latencies in a fixed number of log-linear buckets, in the style of HdrHistogram: values
+ * below 256 are counted exactly, larger values in 128 buckets per power of two. Every recorded
+ * value is therefore kept with a relative error below 1%, using the same memory no matter how
+ * many values are recorded, and percentiles can be read at any time.
+ *
+ * Not thread-safe: give every thread its own histogram and add() them together at the end.
+ */
+public class LatencyHistogram {
+    // Values below this are counted exactly
+    private static final int LINEAR_LIMIT = 256;
+    // Buckets per power of two above LINEAR_LIMIT
+    private static final int SUB_BUCKETS = 128;
+    private static final int SUB_BUCKET_BITS = 7;
+    // Power of two of LINEAR_LIMIT
+    private static final int FIRST_EXPONENT = 8;
+
+    private final long[] counts = new long[LINEAR_LIMIT + (63 - FIRST_EXPONENT) * SUB_BUCKETS];
+    private long totalCount = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    /**
+     * Record one value.
+     *
+     * @param value The value, negative values are recorded as 0
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts[indexOf(value)]++;
+        totalCount++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Add all the values recorded in another histogram to this one.
+     *
+     * @param other The histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @return Number of recorded values
+     */
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * @return Smallest recorded value, 0 if nothing was recorded
+     */
+    public long getMin() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    /**
+     * @return Largest recorded value, 0 if nothing was recorded
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @return Average of the recorded values, 0 if nothing was recorded
+     */
+    public double getMean() {
+        return totalCount == 0 ? 0 : (double) sum / totalCount;
+    }
+
+    /**
+     * Get the value below or at which the given percentage of the recorded values are.
+     *
+     * @param percentile The percentile, for example 99.9
+     * @return The highest value of the bucket the percentile falls in (at most the largest
+     * recorded value), 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long wanted = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= wanted) {
+                return Math.min(highestValueIn(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int indexOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return LINEAR_LIMIT + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long highestValueIn(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int exponent = FIRST_EXPONENT + (index - LINEAR_LIMIT) / SUB_BUCKETS;
+        int subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((long) subBucket << shift) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,455 @@
+package no.ntnu.datakomm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A load generator for capacity planning. Runs many clients in parallel against one of the
+ * warm-up servers (MATH protocol: one arithmetic request line, one response line) or a chat
+ * server (CHAT protocol: the protocol TCPClient speaks, every client logs in first). Prints the
+ * throughput and the latency percentiles at the end of the run.
+ *
+ * Options, given as --name=value:
+ * <ul>
+ *     <li>host, port - the server (default localhost:1234)</li>
+ *     <li>protocol - MATH or CHAT (default MATH)</li>
+ *     <li>clients - number of parallel clients (default 10)</li>
+ *     <li>rampUp - milliseconds over which the clients are started (default 1000)</li>
+ *     <li>duration - length of the run in seconds, ramp-up included (default 30)</li>
+ *     <li>mix - requests and their weights, like "3+4:5;bla+bla:1" (default depends on the
+ *     protocol). Chat "msg" and "privmsg" requests get no response, they are only counted</li>
+ *     <li>think - think time between requests: FIXED, UNIFORM or EXPONENTIAL (default FIXED)</li>
+ *     <li>thinkMean - average think time in milliseconds (default 0)</li>
+ *     <li>reuse - true: one connection per client, false: one connection per request
+ *     (default true)</li>
+ *     <li>timeout - milliseconds to wait for a response before the request counts as an error
+ *     (default 10000)</li>
+ * </ul>
+ */
+public class LoadGenerator {
+    private static final String DEFAULT_MATH_MIX = "3+4:5;12*(7-2):3;10/4:1;bla+bla:1";
+    private static final String DEFAULT_CHAT_MIX = "users:2;help:1;msg load test:2";
+    // Pause after a failed request, so that a dead server doesn't make the clients spin
+    private static final long ERROR_BACKOFF = 100;
+
+    /**
+     * The protocol spoken with the server
+     */
+    public enum Protocol {
+        MATH, CHAT
+    }
+
+    /**
+     * How the think time between two requests of a client is chosen
+     */
+    public enum ThinkTime {
+        /**
+         * Always the mean
+         */
+        FIXED,
+        /**
+         * Uniformly distributed between 0 and twice the mean
+         */
+        UNIFORM,
+        /**
+         * Exponentially distributed (requests arrive like a Poisson process)
+         */
+        EXPONENTIAL
+    }
+
+    private String host = "localhost";
+    private int port = 1234;
+    private Protocol protocol = Protocol.MATH;
+    private int clientCount = 10;
+    private long rampUp = 1000;
+    private long duration = 30000;
+    private String[] requests;
+    // Cumulative weights of the requests, used to pick a request at random
+    private int[] cumulativeWeights;
+    private ThinkTime thinkTime = ThinkTime.FIXED;
+    private long thinkMean = 0;
+    private boolean reuseConnections = true;
+    private int responseTimeout = 10000;
+
+    /**
+     * Run a load test.
+     *
+     * @param args Options, see the class comment
+     */
+    public static void main(String[] args) {
+        LoadGenerator generator;
+        try {
+            generator = fromArgs(args);
+        } catch (IllegalArgumentException e) {
+            log("Error: " + e.getMessage());
+            return;
+        }
+        try {
+            generator.run();
+        } catch (InterruptedException e) {
+            log("Load test interrupted");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Create a load generator configured with command line options.
+     *
+     * @param args Options, see the class comment
+     * @return The load generator
+     * @throws IllegalArgumentException When an option is unknown or has an invalid value
+     */
+    public static LoadGenerator fromArgs(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Options must look like --name=value: " + arg);
+            }
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        LoadGenerator generator = new LoadGenerator();
+        String mix = null;
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            String value = option.getValue();
+            switch (option.getKey()) {
+                case "host":
+                    generator.host = value;
+                    break;
+                case "port":
+                    generator.port = Integer.parseInt(value);
+                    break;
+                case "protocol":
+                    generator.protocol = Protocol.valueOf(value.toUpperCase());
+                    break;
+                case "clients":
+                    generator.clientCount = Integer.parseInt(value);
+                    break;
+                case "rampUp":
+                    generator.rampUp = Long.parseLong(value);
+                    break;
+                case "duration":
+                    generator.duration = TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+                    break;
+                case "mix":
+                    mix = value;
+                    break;
+                case "think":
+                    generator.thinkTime = ThinkTime.valueOf(value.toUpperCase());
+                    break;
+                case "thinkMean":
+                    generator.thinkMean = Long.parseLong(value);
+                    break;
+                case "reuse":
+                    generator.reuseConnections = Boolean.parseBoolean(value);
+                    break;
+                case "timeout":
+                    generator.responseTimeout = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + option.getKey());
+            }
+        }
+        if (mix == null) {
+            mix = generator.protocol == Protocol.MATH ? DEFAULT_MATH_MIX : DEFAULT_CHAT_MIX;
+        }
+        generator.setMix(mix);
+        return generator;
+    }
+
+    /**
+     * Parse a request mix like "3+4:5;bla+bla:1". A request without weight has weight 1.
+     */
+    private void setMix(String mix) {
+        List<String> parsedRequests = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        for (String item : mix.split(";")) {
+            int colon = item.lastIndexOf(':');
+            String request = item;
+            int weight = 1;
+            if (colon > 0 && item.substring(colon + 1).matches("\\d+")) {
+                request = item.substring(0, colon);
+                weight = Integer.parseInt(item.substring(colon + 1));
+            }
+            if (!request.isEmpty() && weight > 0) {
+                parsedRequests.add(request);
+                weights.add(weight);
+            }
+        }
+        if (parsedRequests.isEmpty()) {
+            throw new IllegalArgumentException("The request mix is empty");
+        }
+        requests = parsedRequests.toArray(new String[0]);
+        cumulativeWeights = new int[weights.size()];
+        int total = 0;
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            total += weights.get(i);
+            cumulativeWeights[i] = total;
+        }
+    }
+
+    /**
+     * Run the clients for the configured duration and print the results.
+     *
+     * @throws InterruptedException When interrupted while waiting for the clients
+     */
+    public void run() throws InterruptedException {
+        log("Load test: " + clientCount + " " + protocol + " clients against " + host + ":" + port
+                + " for " + TimeUnit.MILLISECONDS.toSeconds(duration) + " s, connection reuse "
+                + (reuseConnections ? "on" : "off"));
+        long start = System.currentTimeMillis();
+        long deadline = start + duration;
+        ClientWorker[] workers = new ClientWorker[clientCount];
+        Thread[] threads = new Thread[clientCount];
+        for (int i = 0; i < clientCount; i++) {
+            long startAt = start + (clientCount > 1 ? rampUp * i / (clientCount - 1) : 0);
+            workers[i] = new ClientWorker(i, startAt, deadline);
+            threads[i] = new Thread(workers[i], "load-client-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        report(workers, elapsed);
+    }
+
+    /**
+     * Print the totals of all the clients
+     */
+    private void report(ClientWorker[] workers, long elapsed) {
+        LatencyHistogram latencies = new LatencyHistogram();
+        long sentWithoutResponse = 0;
+        long errors = 0;
+        for (ClientWorker worker : workers) {
+            latencies.add(worker.latencies);
+            sentWithoutResponse += worker.sentWithoutResponse;
+            errors += worker.errors;
+        }
+        double seconds = elapsed / 1000.0;
+        long requests = latencies.getTotalCount() + sentWithoutResponse;
+        log(String.format("Requests: %d answered, %d sent without response, %d errors",
+                latencies.getTotalCount(), sentWithoutResponse, errors));
+        log(String.format("Throughput: %.1f requests/s over %.1f s", requests / seconds, seconds));
+        log(String.format("Latency (ms): mean %.3f, p50 %.3f, p90 %.3f, p99 %.3f, p99.9 %.3f,"
+                        + " max %.3f",
+                toMillis(Math.round(latencies.getMean())),
+                toMillis(latencies.getValueAtPercentile(50)),
+                toMillis(latencies.getValueAtPercentile(90)),
+                toMillis(latencies.getValueAtPercentile(99)),
+                toMillis(latencies.getValueAtPercentile(99.9)),
+                toMillis(latencies.getMax())));
+    }
+
+    /**
+     * Convert a latency in microseconds to milliseconds
+     */
+    private static double toMillis(long value) {
+        return value / 1000.0;
+    }
+
+    /**
+     * @return A request picked at random according to the weights of the mix
+     */
+    private String pickRequest() {
+        int r = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (r < cumulativeWeights[i]) {
+                return requests[i];
+            }
+        }
+        return requests[requests.length - 1];
+    }
+
+    /**
+     * @return The think time before the next request, in milliseconds
+     */
+    private long pickThinkTime() {
+        if (thinkMean <= 0) {
+            return 0;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch (thinkTime) {
+            case UNIFORM:
+                return random.nextLong(2 * thinkMean + 1);
+            case EXPONENTIAL:
+                return Math.round(-thinkMean * Math.log(1 - random.nextDouble()));
+            default:
+                return thinkMean;
+        }
+    }
+
+    /**
+     * @return True when the server responds to the request with a line
+     */
+    private boolean expectsResponse(String request) {
+        return protocol == Protocol.MATH
+                || !(request.startsWith("msg ") || request.startsWith("privmsg "));
+    }
+
+    /**
+     * One simulated client. Records its own latencies, in microseconds.
+     */
+    private class ClientWorker implements Runnable {
+        private final int id;
+        private final long startAt;
+        private final long deadline;
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private long sentWithoutResponse = 0;
+        private long errors = 0;
+        private Connection connection;
+        // Number of connections opened, makes the chat usernames unique
+        private int connectionCount = 0;
+
+        ClientWorker(int id, long startAt, long deadline) {
+            this.id = id;
+            this.startAt = startAt;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            try {
+                sleepUntil(startAt);
+                while (System.currentTimeMillis() < deadline) {
+                    String request = pickRequest();
+                    try {
+                        sendRequest(request);
+                    } catch (IOException e) {
+                        errors++;
+                        closeConnection();
+                        Thread.sleep(ERROR_BACKOFF);
+                    }
+                    long think = pickThinkTime();
+                    if (think > 0) {
+                        sleepUntil(Math.min(deadline, System.currentTimeMillis() + think));
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                closeConnection();
+            }
+        }
+
+        /**
+         * Send one request and wait for the response. Without connection reuse, the time to
+         * connect (and log in) is part of the latency.
+         */
+        private void sendRequest(String request) throws IOException {
+            long started = System.nanoTime();
+            if (connection == null) {
+                connection = new Connection("load" + id + "n" + connectionCount++);
+            }
+            connection.writer.println(request);
+            if (expectsResponse(request)) {
+                String response = connection.readResponse();
+                if (response == null) {
+                    throw new IOException("Connection closed by the server");
+                }
+                if (response.equals("busy")) {
+                    errors++;
+                } else {
+                    latencies.record((System.nanoTime() - started) / 1000);
+                }
+            } else {
+                sentWithoutResponse++;
+            }
+            if (!reuseConnections) {
+                closeConnection();
+            }
+        }
+
+        private void closeConnection() {
+            if (connection != null) {
+                connection.close();
+                connection = null;
+            }
+        }
+
+        private void sleepUntil(long time) throws InterruptedException {
+            long delay = time - System.currentTimeMillis();
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * A connection to the server, logged in when the protocol is CHAT
+     */
+    private class Connection {
+        private final Socket socket;
+        private final BufferedReader reader;
+        private final PrintWriter writer;
+
+        /**
+         * @param username Username to log in with, only used by the CHAT protocol
+         */
+        Connection(String username) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(responseTimeout);
+            reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            writer = new PrintWriter(
+                    new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            if (protocol == Protocol.CHAT) {
+                writer.println("login " + username);
+                String response = readResponse();
+                if (!"loginok".equals(response)) {
+                    close();
+                    throw new IOException("Login failed: " + response);
+                }
+            }
+        }
+
+        /**
+         * Read the response to a request, skipping the chat messages and user changes that the
+         * server pushes to every client.
+         */
+        String readResponse() throws IOException {
+            String line;
+            do {
+                line = reader.readLine();
+            } while (line != null && protocol == Protocol.CHAT && isPushed(line));
+            return line;
+        }
+
+        private boolean isPushed(String line) {
+            return line.startsWith("msg ") || line.startsWith("privmsg ")
+                    || line.startsWith("joined ") || line.startsWith("left ");
+        }
+
+        void close() {
+            try {
+                if (protocol == Protocol.MATH) {
+                    writer.println(ClientHandler.GAME_OVER);
+                }
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    /**
+     * Log a message to the system console.
+     *
+     * @param message The message to be logged (printed).
+     */
+    private static void log(String message) {
+        System.out.println(message);
+    }
+}
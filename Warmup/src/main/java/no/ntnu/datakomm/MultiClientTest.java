@@ -1,16 +1,21 @@
 package no.ntnu.datakomm;
 
 /**
- * A class used to test whether the server can handle multiple TCP client simultaneously (a multi-threaded server)
+ * A class used to test whether the server can handle multiple TCP client simultaneously (a multi-threaded server).
+ * When started with options, it runs a LoadGenerator instead.
  */
 public class MultiClientTest {
 
     /**
      * Run multiple parallel clients that all connect to the same server
      *
-     * @param args Command-line arguments. Not used.
+     * @param args Command-line arguments. When given, they are passed on to LoadGenerator, see the options there.
      */
     public static void main(String args[]) {
+        if (args.length > 0) {
+            LoadGenerator.main(args);
+            return;
+        }
         log("Starting several clients to test servers multi-threading capability");
         startNewClient();
         startNewClient();
@@ -0,0 +1,354 @@
+package no.ntnu.datakomm;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A selector-based TCP server that answers the same requests as SimpleTcpServer, without a thread
+ * per client. The calling thread accepts connections and hands them out round-robin to a small
+ * number of reactor threads. Each reactor drives its connections with one Selector, using
+ * non-blocking reads and writes and a read/write buffer per connection. This way tens of thousands
+ * of connections can be open at the same time.
+ *
+ * Like ClientHandler, a connection serves requests until the client sends "game over" or stays
+ * idle for longer than ClientHandler.IDLE_TIMEOUT.
+ */
+public class NioTcpServer {
+    private static final int DEFAULT_PORT = 1234;
+    // Longest request line we accept. Longer lines close the connection
+    private static final int MAX_LINE_LENGTH = 8192;
+    // How often each reactor looks for idle connections (milliseconds)
+    private static final long IDLE_CHECK_INTERVAL = Math.max(1, ClientHandler.IDLE_TIMEOUT / 4);
+    // How long to wait before accepting again after accept() failed (milliseconds)
+    private static final long ACCEPT_BACKOFF = 100;
+    // Printing every request serializes the reactors on the stdout lock, so it is off unless
+    // the server.logRequests system property is true
+    private static final boolean LOG_REQUESTS = Boolean.getBoolean("server.logRequests");
+
+    private final int port;
+    private final Reactor[] reactors;
+    private volatile boolean mustRun = true;
+
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int reactorCount = args.length > 1
+                ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        try {
+            NioTcpServer server = new NioTcpServer(port, reactorCount);
+            log("NIO TCP server starting with " + reactorCount + " reactor threads");
+            server.run();
+        } catch (IOException e) {
+            log("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param port         TCP port to listen on
+     * @param reactorCount Number of reactor threads handling the connections
+     * @throws IOException When a selector can't be opened
+     */
+    public NioTcpServer(int port, int reactorCount) throws IOException {
+        this.port = port;
+        this.reactors = new Reactor[Math.max(1, reactorCount)];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(Selector.open());
+        }
+    }
+
+    /**
+     * Runs the server: start the reactor threads and accept connections on the calling thread
+     * until stop() is called.
+     */
+    public void run() {
+        for (int i = 0; i < reactors.length; i++) {
+            Thread t = new Thread(reactors[i], "reactor-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        try (ServerSocketChannel welcomeChannel = ServerSocketChannel.open()) {
+            welcomeChannel.bind(new InetSocketAddress(port), 1024);
+            log("Server started on port " + port);
+            int next = 0;
+            while (mustRun) {
+                SocketChannel clientChannel;
+                try {
+                    clientChannel = welcomeChannel.accept();
+                } catch (ClosedChannelException e) {
+                    break;
+                } catch (IOException e) {
+                    // Typically "Too many open files". The open connections are fine, wait for
+                    // some of them to close instead of stopping the server
+                    log("Accept failed: " + e.getMessage());
+                    pause(ACCEPT_BACKOFF);
+                    continue;
+                }
+                try {
+                    clientChannel.configureBlocking(false);
+                    clientChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                } catch (IOException e) {
+                    log("Could not set up connection: " + e.getMessage());
+                    closeQuietly(clientChannel);
+                    continue;
+                }
+                reactors[next].add(clientChannel);
+                next = (next + 1) % reactors.length;
+            }
+        } catch (IOException e) {
+            log("Error: " + e.getMessage());
+        } finally {
+            for (Reactor reactor : reactors) {
+                reactor.stop();
+            }
+        }
+    }
+
+    /**
+     * Stop accepting new connections. Takes effect after the next accepted connection.
+     */
+    public void stop() {
+        mustRun = false;
+    }
+
+    /**
+     * One selector and the thread running it.
+     */
+    private static class Reactor implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        Reactor(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Hand a new connection to this reactor. Called from the accepting thread.
+         */
+        void add(SocketChannel channel) {
+            newChannels.add(channel);
+            selector.wakeup();
+        }
+
+        void stop() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long nextIdleCheck = System.currentTimeMillis() + IDLE_CHECK_INTERVAL;
+            try {
+                while (running) {
+                    selector.select(IDLE_CHECK_INTERVAL);
+                    registerNewChannels();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.handleRead();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.handleWrite();
+                            }
+                        } catch (RuntimeException e) {
+                            // A bug in one connection must not stop the others on this thread
+                            log("Connection failed: " + e);
+                            connection.close();
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now >= nextIdleCheck) {
+                        closeIdleConnections(now);
+                        nextIdleCheck = now + IDLE_CHECK_INTERVAL;
+                    }
+                }
+            } catch (IOException e) {
+                log("Reactor stopped: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // Nothing more we can do
+                }
+            }
+        }
+
+        /**
+         * Close the connections that have not sent anything for longer than the idle timeout.
+         */
+        private void closeIdleConnections(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (now - connection.lastActivity > ClientHandler.IDLE_TIMEOUT) {
+                    connection.close();
+                }
+            }
+        }
+
+        private void registerNewChannels() {
+            SocketChannel channel;
+            while ((channel = newChannels.poll()) != null) {
+                try {
+                    Connection connection = new Connection(channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (ClosedChannelException e) {
+                    // The client is gone already
+                }
+            }
+        }
+    }
+
+    /**
+     * State of one client connection. Only used by its reactor thread.
+     */
+    private static class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(MAX_LINE_LENGTH);
+        // Responses not written yet, in order
+        private final Queue<ByteBuffer> writeQueue = new ArrayDeque<>();
+        private SelectionKey key;
+        // Time of the last read, used to find idle connections
+        private long lastActivity = System.currentTimeMillis();
+        // True after "game over": nothing more is read, the connection is closed once the
+        // responses before it are written
+        private boolean closing = false;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Read what has arrived and answer every complete request line in it, up to a
+         * "game over" line.
+         */
+        void handleRead() {
+            try {
+                if (channel.read(readBuffer) < 0) {
+                    close();
+                    return;
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            readBuffer.flip();
+            byte[] bytes = readBuffer.array();
+            int lineStart = 0;
+            for (int i = 0; i < readBuffer.limit(); i++) {
+                if (bytes[i] == '\n') {
+                    int end = i > lineStart && bytes[i - 1] == '\r' ? i - 1 : i;
+                    String clientInput = new String(bytes, lineStart, end - lineStart,
+                            StandardCharsets.UTF_8);
+                    lineStart = i + 1;
+                    if (clientInput.isEmpty()) {
+                        // Empty lines are not requests
+                        continue;
+                    }
+                    if (clientInput.equals(ClientHandler.GAME_OVER)) {
+                        // Like ClientHandler, answer the requests before it before closing
+                        closing = true;
+                        break;
+                    }
+                    writeQueue.add(ByteBuffer.wrap(
+                            (ClientHandler.createResponse(clientInput, LOG_REQUESTS) + "\n")
+                                    .getBytes(StandardCharsets.UTF_8)));
+                }
+            }
+            if (closing) {
+                handleWrite();
+                return;
+            }
+            readBuffer.position(lineStart);
+            readBuffer.compact();
+            if (!readBuffer.hasRemaining()) {
+                log("Request line too long, closing connection");
+                close();
+                return;
+            }
+            handleWrite();
+        }
+
+        /**
+         * Write as much of the pending responses as the socket accepts. While responses are
+         * waiting, no more requests are read. A closing connection is closed once they are all
+         * written.
+         */
+        void handleWrite() {
+            try {
+                ByteBuffer response;
+                while ((response = writeQueue.peek()) != null) {
+                    channel.write(response);
+                    if (response.hasRemaining()) {
+                        break;
+                    }
+                    writeQueue.poll();
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (closing && writeQueue.isEmpty()) {
+                close();
+                return;
+            }
+            key.interestOps(writeQueue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+        }
+
+        void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    // Sleep, keeping the interrupt flag when interrupted
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing more we can do
+        }
+    }
+
+    /**
+     * Log a message to the system console.
+     *
+     * @param message The message to be logged (printed).
+     */
+    private static void log(String message) {
+        System.out.println(message);
+    }
+}
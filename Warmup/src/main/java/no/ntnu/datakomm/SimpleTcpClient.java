@@ -2,6 +2,7 @@ package no.ntnu.datakomm;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 
 /**
  * A Simple TCP client, used as a warm-up exercise for assignment A4.
@@ -12,6 +13,8 @@ public class SimpleTcpClient {
     // TCP port
     private static final int PORT = 1234;
     private Socket socket;
+    // Reads the responses. Kept for the whole connection, since it may buffer more than one line
+    private BufferedReader reader;
 
     /**
      * Run the TCP Client.
@@ -119,6 +122,8 @@ public class SimpleTcpClient {
         try
         {
             this.socket = new Socket(host, port);
+            this.reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
             success = true;
         }
         catch (IOException e)
@@ -163,7 +168,8 @@ public class SimpleTcpClient {
         {
             try {
                 OutputStream out = socket.getOutputStream();
-                PrintWriter writer = new PrintWriter(out, true);
+                PrintWriter writer = new PrintWriter(
+                        new OutputStreamWriter(out, StandardCharsets.UTF_8), true);
                 writer.println(request);
                 writer.println("");
                 success = true;
@@ -187,17 +193,8 @@ public class SimpleTcpClient {
         if (!socket.isClosed())
         {
             try {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                StringBuilder builder = new StringBuilder();
-                String responseLine;
-                do {
-                    responseLine = reader.readLine();
-                    if (responseLine != null)
-                    {
-                        builder.append(responseLine).append("\n");
-                    }
-                } while (responseLine != null);
-                response = builder.toString();
+                // The server keeps the connection open, one line is one response
+                response = reader.readLine();
             } catch (IOException e) {
                 log("I/O exception occurred when attempting to read a response from the server.");
             }
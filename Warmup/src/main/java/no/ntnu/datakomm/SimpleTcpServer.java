@@ -1,43 +1,217 @@
 package no.ntnu.datakomm;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
  * A Simple TCP server, used as a warm-up exercise for assignment A4.
+ *
+ * By default every client gets its own thread. With -Dserver.mode=pool the clients are served by
+ * a bounded thread pool with a bounded queue instead, so that a connection storm can't create an
+ * unbounded number of threads. What happens when the pool and the queue are full is decided by the
+ * RejectionPolicy. The settings are read from system properties:
+ * <ul>
+ *     <li>server.backlog - length of the listen queue of the server socket (default 50)</li>
+ *     <li>server.corePoolSize - threads kept in the pool (default: number of processors)</li>
+ *     <li>server.maxPoolSize - maximum number of threads in the pool (default 4 * corePoolSize)</li>
+ *     <li>server.queueCapacity - clients waiting for a free thread (default 100)</li>
+ *     <li>server.rejection - REPLY_BUSY or STALL_ACCEPT (default REPLY_BUSY)</li>
+ * </ul>
  */
 public class SimpleTcpServer {
     private static final int PORT =1234;
+    // Sent to a client that is rejected because the server is overloaded
+    private static final String BUSY_RESPONSE = "busy";
+    // Idle pool threads above the core size are stopped after this long (seconds)
+    private static final long POOL_KEEP_ALIVE = 60;
+    // How long to wait before accepting again after accept() failed (milliseconds)
+    private static final long ACCEPT_BACKOFF = 100;
+
+    /**
+     * What to do with a new client when all the pool threads are busy and the queue is full.
+     */
+    public enum RejectionPolicy {
+        /**
+         * Reply "busy" and close the connection right away
+         */
+        REPLY_BUSY,
+        /**
+         * Stop accepting connections until a client is done. New clients wait in the listen
+         * backlog of the server socket, and are refused by the OS when that is full too.
+         */
+        STALL_ACCEPT
+    }
+
+    private final int backlog;
+    // Null in thread-per-client mode
+    private final ThreadPoolExecutor pool;
+    // Free places in the pool and the queue, used by STALL_ACCEPT
+    private final Semaphore capacity;
 
     public static void main(String[] args) {
-        SimpleTcpServer server = new SimpleTcpServer();
+        SimpleTcpServer server = createFromSystemProperties();
         log("Simple TCP server starting");
         server.run();
         log("ERROR: the server should never go out of the run() method! After handling one client");
     }
 
+    /**
+     * Create a server that starts a new thread for every client.
+     *
+     * @param backlog Length of the listen queue of the server socket
+     */
+    public SimpleTcpServer(int backlog) {
+        this.backlog = backlog;
+        this.pool = null;
+        this.capacity = null;
+    }
+
+    /**
+     * Create a server that serves the clients with a bounded thread pool.
+     *
+     * @param backlog         Length of the listen queue of the server socket
+     * @param corePoolSize    Number of threads kept in the pool
+     * @param maxPoolSize     Maximum number of threads, started when the queue is full
+     * @param queueCapacity   Number of clients that can wait for a free thread
+     * @param rejectionPolicy What to do when all threads are busy and the queue is full
+     */
+    public SimpleTcpServer(int backlog, int corePoolSize, int maxPoolSize, int queueCapacity,
+                           RejectionPolicy rejectionPolicy) {
+        this.backlog = backlog;
+        this.capacity = rejectionPolicy == RejectionPolicy.STALL_ACCEPT
+                ? new Semaphore(maxPoolSize + queueCapacity)
+                : null;
+        this.pool = new ThreadPoolExecutor(corePoolSize, maxPoolSize,
+                POOL_KEEP_ALIVE, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new HandlerThreadFactory());
+    }
+
+    /**
+     * Create a server configured with the system properties described in the class comment.
+     */
+    private static SimpleTcpServer createFromSystemProperties() {
+        int backlog = Integer.getInteger("server.backlog", 50);
+        if (!"pool".equals(System.getProperty("server.mode"))) {
+            return new SimpleTcpServer(backlog);
+        }
+        int corePoolSize = Integer.getInteger("server.corePoolSize",
+                Runtime.getRuntime().availableProcessors());
+        int maxPoolSize = Integer.getInteger("server.maxPoolSize", 4 * corePoolSize);
+        int queueCapacity = Integer.getInteger("server.queueCapacity", 100);
+        RejectionPolicy policy = RejectionPolicy.valueOf(
+                System.getProperty("server.rejection", RejectionPolicy.REPLY_BUSY.name()));
+        log("Thread pool " + corePoolSize + "-" + maxPoolSize + ", queue " + queueCapacity
+                + ", " + policy);
+        return new SimpleTcpServer(backlog, corePoolSize, maxPoolSize, queueCapacity, policy);
+    }
+
     /**
      * Runs the server
      */
     public void run() {
-        try {
-            ServerSocket welcomeSocket = new ServerSocket(PORT);
+        try (ServerSocket welcomeSocket = new ServerSocket(PORT, backlog)) {
             System.out.println("Server started on port " + PORT);
 
             boolean mustRun = true;
 
             while(mustRun) {
-                Socket clientSocket = welcomeSocket.accept();
+                if (capacity != null) {
+                    // Don't accept more clients than we can serve
+                    capacity.acquire();
+                }
+                Socket clientSocket;
+                try {
+                    clientSocket = welcomeSocket.accept();
+                } catch (IOException e) {
+                    // Typically "Too many open files". The clients being served are fine, wait
+                    // for some of them to be done instead of stopping the server
+                    if (capacity != null) {
+                        capacity.release();
+                    }
+                    log("Accept failed: " + e.getMessage());
+                    Thread.sleep(ACCEPT_BACKOFF);
+                    continue;
+                }
                 ClientHandler clientHandler = new ClientHandler(clientSocket);
-                clientHandler.start();
+                if (pool == null) {
+                    new Thread(clientHandler).start();
+                } else {
+                    dispatch(clientSocket, clientHandler);
+                }
             }
         } catch (IOException e){
             System.out.println("Error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            System.out.println("Server interrupted");
+            Thread.currentThread().interrupt();
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Hand a client to the thread pool, or reject it when the pool is saturated.
+     */
+    private void dispatch(Socket clientSocket, ClientHandler clientHandler) {
+        Runnable task = clientHandler;
+        if (capacity != null) {
+            task = () -> {
+                try {
+                    clientHandler.run();
+                } finally {
+                    capacity.release();
+                }
+            };
+        }
+        try {
+            pool.execute(task);
+        } catch (RejectedExecutionException e) {
+            // With STALL_ACCEPT this only happens in the short moment between a client being
+            // done and its thread taking the next one from the queue
+            if (capacity != null) {
+                capacity.release();
+            }
+            rejectBusy(clientSocket);
         }
     }
 
+    /**
+     * Tell the client that the server is busy and close the connection.
+     */
+    private static void rejectBusy(Socket clientSocket) {
+        try (Socket socket = clientSocket) {
+            OutputStream out = socket.getOutputStream();
+            out.write((BUSY_RESPONSE + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException e) {
+            // The client is gone already
+        }
+    }
+
+    /**
+     * Names the pool threads, to make thread dumps readable.
+     */
+    private static class HandlerThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "client-handler-" + counter.incrementAndGet());
+        }
+    }
 
     /**
      * Log a message to the system console.
@@ -47,4 +221,4 @@ public class SimpleTcpServer {
     private static void log(String message) {
         System.out.println(message);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,117 @@
+package no.ntnu.datakomm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ArithmeticEngineTest {
+    private static final String ERROR = ArithmeticEngine.ERROR_RESPONSE;
+
+    private final ArithmeticEngine engine = new ArithmeticEngine(16);
+
+    /**
+     * Test that * and / bind tighter than + and -, that operators are left-associative and
+     * that parentheses and whitespace are handled
+     */
+    @Test
+    public void testPrecedence() {
+        assertEquals("7", engine.evaluate("3+4"));
+        assertEquals("14", engine.evaluate("2+3*4"));
+        assertEquals("20", engine.evaluate("(2+3)*4"));
+        assertEquals("3", engine.evaluate("10-4-3"));
+        assertEquals("1", engine.evaluate("8/4/2"));
+        assertEquals("-1", engine.evaluate(" ( 2 - 5 ) * 1.5 / 4.5 "));
+        assertEquals("0.5", engine.evaluate("1/2"));
+        assertEquals("0.3333333333333333", engine.evaluate("1/3"));
+        assertEquals("3", engine.evaluate("1.50*2"));
+    }
+
+    /**
+     * Test unary minus and plus, also after a binary operator
+     */
+    @Test
+    public void testUnaryMinus() {
+        assertEquals("-3", engine.evaluate("-3"));
+        assertEquals("6", engine.evaluate("-3*-2"));
+        assertEquals("5", engine.evaluate("2--3"));
+        assertEquals("-3", engine.evaluate("-(1+2)"));
+        assertEquals("3", engine.evaluate("--3"));
+        assertEquals("4", engine.evaluate("+4"));
+        assertEquals("0", engine.evaluate("-0"));
+    }
+
+    /**
+     * Test that results that don't fit in a long are computed with BigDecimal
+     */
+    @Test
+    public void testOverflowFallback() {
+        assertEquals("9223372036854775807", engine.evaluate("9223372036854775807"));
+        assertEquals("9223372036854775808", engine.evaluate("9223372036854775807+1"));
+        assertEquals("-9223372036854775809", engine.evaluate("-9223372036854775808-1"));
+        assertEquals("9223372036854775808", engine.evaluate("-(-9223372036854775808)"));
+        assertEquals("85070591730234615847396907784232501249",
+                engine.evaluate("9223372036854775807*9223372036854775807"));
+        assertEquals("99999999999999999999", engine.evaluate("99999999999999999999"));
+    }
+
+    /**
+     * Test that division by zero gives an error
+     */
+    @Test
+    public void testDivisionByZero() {
+        assertEquals(ERROR, engine.evaluate("1/0"));
+        assertEquals(ERROR, engine.evaluate("1/(2-2)"));
+        assertEquals(ERROR, engine.evaluate("0/0.0"));
+        // Cached expressions fail again
+        assertEquals(ERROR, engine.evaluate("1/0"));
+    }
+
+    /**
+     * Test that invalid requests give an error, and are cached like valid ones
+     */
+    @Test
+    public void testInvalidInput() {
+        for (String request : new String[]{"bla+bla", "", "  ", "1+", "(1", "1)", "1..2", "1.",
+                "2 3", "3 % 2", "((((((((((((((((((((((((((((((((((((((((((((((((((((((((("
+                + "((((((((((((((((((((((((((((((((((((((((((((((1"}) {
+            assertEquals(request, ERROR, engine.evaluate(request));
+        }
+
+        ArithmeticEngine engine = new ArithmeticEngine(4);
+        assertEquals(ERROR, engine.evaluate("bla+bla"));
+        assertEquals(ERROR, engine.evaluate("bla+bla"));
+        assertEquals(ERROR, engine.evaluate("bla+bla"));
+        assertEquals(1, engine.getCacheMisses());
+        assertEquals(2, engine.getCacheHits());
+    }
+
+    /**
+     * Test that the least recently used expression is evicted when the cache is full
+     */
+    @Test
+    public void testLruEviction() {
+        ArithmeticEngine engine = new ArithmeticEngine(2);
+        engine.evaluate("1+1");
+        engine.evaluate("2+2");
+        // Makes "2+2" the least recently used
+        engine.evaluate("1+1");
+        assertEquals(2, engine.getCacheMisses());
+        assertEquals(1, engine.getCacheHits());
+
+        // Evicts "2+2"
+        engine.evaluate("3+3");
+        assertEquals(3, engine.getCacheMisses());
+        assertEquals("2", engine.evaluate("1+1"));
+        assertEquals(2, engine.getCacheHits());
+        assertEquals("4", engine.evaluate("2+2"));
+        assertEquals(4, engine.getCacheMisses());
+    }
+
+    /**
+     * Test that the cache size is checked
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCacheSize() {
+        new ArithmeticEngine(0);
+    }
+}